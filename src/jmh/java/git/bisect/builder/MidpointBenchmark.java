@@ -0,0 +1,55 @@
+package git.bisect.builder;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Picking the next revision on an already loaded commit graph, which the in-process engine does on every step.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MidpointBenchmark {
+	@Param({ "LINEAR", "MERGE_HEAVY" })
+	SyntheticHistory.Shape shape;
+
+	@Param({ "1000", "10000" })
+	int commits;
+
+	CommitGraph graph;
+	String bad;
+	List<String> goods;
+
+	@Setup
+	public void generateGraph() {
+		graph = SyntheticHistory.graphOf(SyntheticHistory.parentsOf(shape, commits));
+		bad = SyntheticHistory.nameOf(commits - 1);
+		goods = Collections.singletonList(SyntheticHistory.nameOf(0));
+	}
+
+	@Benchmark
+	public String midpoint() {
+		return graph.midpoint(bad, goods, Collections.emptyList());
+	}
+
+	@Benchmark
+	public List<String> candidates() {
+		return graph.candidates(bad, goods);
+	}
+}
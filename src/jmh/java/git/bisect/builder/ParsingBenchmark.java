@@ -0,0 +1,62 @@
+package git.bisect.builder;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing of 'git bisect log' output, which happens on every step and when a search is resumed from its journal.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParsingBenchmark {
+	@Param({ "1000", "10000", "100000" })
+	int entries;
+
+	String log;
+	List<String> lines;
+
+	@Setup
+	public void generateLog() {
+		log = SyntheticHistory.bisectLog(entries);
+		lines = CommandsRunner.linesOf(log);
+	}
+
+	@Benchmark
+	public String findCompletionToken() {
+		return CommandsRunner.findCompletionToken(log);
+	}
+
+	@Benchmark
+	public List<String> linesOf() {
+		return CommandsRunner.linesOf(log);
+	}
+
+	@Benchmark
+	public void revisionFromLine(Blackhole blackhole) {
+		for (String line : lines)
+			if (line.startsWith("#"))
+				blackhole.consume(CommandsRunner.revisionFromLine(line));
+	}
+
+	@Benchmark
+	public BisectState stateFromLog() {
+		return BisectState.fromLog(lines);
+	}
+}
@@ -0,0 +1,77 @@
+package git.bisect.builder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import git.bisect.Logger;
+import git.bisect.builder.CommandsRunner.BisectionResult;
+import git.bisect.builder.CommandsRunner.CommitState;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.util.StreamTaskListener;
+
+/**
+ * Resuming a saved search with the in-process engine: loading the commit graph of a repository
+ * generated on the local disk and computing the next revision.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ResumeBenchmark {
+	@Param({ "LINEAR", "MERGE_HEAVY" })
+	SyntheticHistory.Shape shape;
+
+	@Param({ "1000", "10000" })
+	int commits;
+
+	File repository;
+	BisectState state;
+	Logger logger;
+
+	@Setup
+	public void generateRepository() throws IOException {
+		logger = new Logger(new StreamTaskListener(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		}));
+		repository = Files.createTempDirectory("git-bisect-benchmark").toFile();
+		List<String> ids = SyntheticHistory.writeRepository(repository, SyntheticHistory.parentsOf(shape, commits));
+
+		state = new BisectState();
+		state.recordVerdict(ids.get(ids.size() - 1), CommitState.Bad);
+		state.recordVerdict(ids.get(0), CommitState.Good);
+	}
+
+	@TearDown
+	public void deleteRepository() throws IOException, InterruptedException {
+		Util.deleteRecursive(repository);
+	}
+
+	@Benchmark
+	public BisectionResult restore() throws IOException, InterruptedException {
+		JGitBisectEngine engine = new JGitBisectEngine(new FilePath(repository), logger);
+		engine.resetBisection();
+		return engine.restore(state);
+	}
+}
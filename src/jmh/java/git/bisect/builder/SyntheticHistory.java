@@ -0,0 +1,140 @@
+package git.bisect.builder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+
+/**
+ * Generates commit histories for the benchmarks, commit 0 is the oldest (the good revision)
+ * and the last commit is the newest (the bad revision).
+ */
+final class SyntheticHistory {
+	enum Shape {
+		/** Every commit has a single parent */
+		LINEAR,
+		/** Every fifth commit merges a branch of three commits, forked from the previous merge */
+		MERGE_HEAVY
+	}
+
+	private SyntheticHistory() {
+	}
+
+	/**
+	 * @return the parents of every commit, by commit
+	 */
+	static int[][] parentsOf(Shape shape, int commits) {
+		int[][] parents = new int[commits][];
+		parents[0] = new int[0];
+		int mainline = 0;
+		for (int i = 1; i < commits; i++)
+		{
+			int positionInBlock = (i - 1) % 5;
+			if (shape == Shape.LINEAR)
+				parents[i] = new int[] { i - 1 };
+			else if (positionInBlock == 0)
+				// The first commit of the branch
+				parents[i] = new int[] { mainline };
+			else if (positionInBlock < 3)
+				parents[i] = new int[] { i - 1 };
+			else if (positionInBlock == 3)
+				// The mainline commit next to the branch
+				parents[i] = new int[] { mainline };
+			else
+				parents[i] = new int[] { i - 1, i - 2 };
+
+			if (shape == Shape.LINEAR || positionInBlock == 4)
+				mainline = i;
+		}
+		return parents;
+	}
+
+	static String nameOf(int commit) {
+		return String.format("%040x", commit);
+	}
+
+	/**
+	 * Builds the graph the engine loads for this history, without the good revision.
+	 * Commits are ordered newest first, the way they are loaded.
+	 */
+	static CommitGraph graphOf(int[][] parents) {
+		int commits = parents.length;
+		ArrayList<String> names = new ArrayList<>();
+		ArrayList<String> subjects = new ArrayList<>();
+		int[][] graphParents = new int[commits - 1][];
+		for (int graphIndex = 0; graphIndex < commits - 1; graphIndex++)
+		{
+			int commit = commits - 1 - graphIndex;
+			names.add(nameOf(commit));
+			subjects.add("Commit " + commit);
+			graphParents[graphIndex] = Arrays.stream(parents[commit])
+					.filter(parent -> parent != 0)
+					.map(parent -> commits - 1 - parent)
+					.toArray();
+		}
+		return new CommitGraph(names, subjects, graphParents);
+	}
+
+	/**
+	 * Writes the history into a new repository, all commits share an empty tree.
+	 * @return the ids of the commits, by commit
+	 */
+	static List<String> writeRepository(File directory, int[][] parents) throws IOException {
+		List<String> ids = new ArrayList<>();
+		try (Repository repository = FileRepositoryBuilder.create(new File(directory, Constants.DOT_GIT)))
+		{
+			repository.create();
+			PersonIdent author = new PersonIdent("Benchmark", "benchmark@example.com");
+			try (ObjectInserter inserter = repository.newObjectInserter())
+			{
+				ObjectId emptyTree = inserter.insert(new TreeFormatter());
+				List<ObjectId> commitIds = new ArrayList<>();
+				for (int i = 0; i < parents.length; i++)
+				{
+					CommitBuilder commit = new CommitBuilder();
+					commit.setTreeId(emptyTree);
+					for (int parent : parents[i])
+						commit.addParentId(commitIds.get(parent));
+					commit.setAuthor(author);
+					commit.setCommitter(author);
+					commit.setMessage("Commit " + i + "\n");
+					ObjectId id = inserter.insert(commit);
+					commitIds.add(id);
+					ids.add(id.name());
+				}
+				inserter.flush();
+
+				RefUpdate master = repository.updateRef("refs/heads/master");
+				master.setNewObjectId(commitIds.get(commitIds.size() - 1));
+				master.forceUpdate();
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * A bisect log with alternating verdicts, ending with the first bad commit
+	 */
+	static String bisectLog(int entries) {
+		StringBuilder log = new StringBuilder("git bisect start\n");
+		for (int i = 0; i < entries; i++)
+		{
+			String verdict = i % 2 == 0 ? "good" : "bad";
+			log.append("# ").append(verdict).append(": [").append(nameOf(i)).append("] Commit ").append(i).append('\n');
+			log.append("git bisect ").append(verdict).append(' ').append(nameOf(i)).append('\n');
+		}
+		log.append("# first bad commit: [").append(nameOf(entries)).append("] Commit ").append(entries).append('\n');
+		return log.toString();
+	}
+}
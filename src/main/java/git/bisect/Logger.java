@@ -2,25 +2,87 @@ package git.bisect;
 
 import hudson.model.TaskListener;
 
+/**
+ * The log of a single search, shared by the builder, the engine and the commit tester that take part in it,
+ * so searches running at the same time each write to their own listener.
+ * Debug lines are only written by verbose loggers, and are written in batches,
+ * every other line writes the lines batched before it first.
+ */
 public class Logger {
-	private static TaskListener listener;
-	
-	public static void initializeLogger(TaskListener listener)
+	public enum Level {
+		DEBUG, INFO
+	}
+
+	private static final String PREFIX = "[GIT-BISECT]: ";
+	// Batched debug lines are written once they reach this size
+	private static final int MAX_BATCH_CHARS = 8 * 1024;
+
+	private final TaskListener listener;
+	private final Level level;
+	private final StringBuilder batch = new StringBuilder();
+
+	public Logger(TaskListener listener)
+	{
+		this(listener, Level.INFO);
+	}
+
+	public Logger(TaskListener listener, Level level)
+	{
+		this.listener = listener;
+		this.level = level;
+	}
+
+	public static Logger of(TaskListener listener, boolean verbose)
+	{
+		return new Logger(listener, verbose ? Level.DEBUG : Level.INFO);
+	}
+
+	public TaskListener getListener()
 	{
-		Logger.listener = listener;
+		return listener;
 	}
-	
-	public static void log(String line)
+
+	public boolean isDebugEnabled()
 	{
-		listener.getLogger().println("[GIT-BISECT]: " + line);
+		return level == Level.DEBUG;
 	}
-	
-	public static void printStackTrace(Exception e)
+
+	public synchronized void debug(String line)
 	{
+		if (!isDebugEnabled())
+			return;
+
+		batch.append(PREFIX).append(line).append('\n');
+		if (batch.length() >= MAX_BATCH_CHARS)
+			flush();
+	}
+
+	public synchronized void log(String line)
+	{
+		flush();
+		listener.getLogger().println(PREFIX + line);
+	}
+
+	public synchronized void printStackTrace(Exception e)
+	{
+		flush();
 		e.printStackTrace(listener.getLogger());
 	}
 
-	public static void error(String string) {
+	public synchronized void error(String string) {
+		flush();
 		listener.error(string);
 	}
+
+	/**
+	 * Writes the batched lines, a search flushes its logger before it stops writing to it
+	 */
+	public synchronized void flush()
+	{
+		if (batch.length() == 0)
+			return;
+
+		listener.getLogger().print(batch);
+		batch.setLength(0);
+	}
 }
@@ -0,0 +1,315 @@
+package git.bisect.builder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.FilePath;
+import hudson.XmlFile;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.InvisibleAction;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.queue.QueueListener;
+import hudson.util.StreamTaskListener;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * Searches that released their executor and wait for a downstream build, kept on the controller.
+ * When a downstream build of such a search completes, the search takes its next step on a controller thread
+ * and writes to its own log file instead of the (already finished) build log, or to the log of its Pipeline step.
+ * Waiting searches are persisted, so a search continues after a restart once its downstream build completes.
+ * A downstream build that is cancelled before it starts never completes, the search stops instead of waiting forever.
+ */
+@Extension
+public class AsyncBisections extends RunListener<Run<?, ?>> {
+	private static final Logger LOGGER = Logger.getLogger(AsyncBisections.class.getName());
+
+	private transient HashMap<String, Search> searches;
+
+	/**
+	 * Attached to the downstream builds of a waiting search, to find the search once they complete
+	 */
+	public static class Marker extends InvisibleAction {
+		final String searchId;
+		final String commit;
+		final long scheduledAt;
+
+		Marker(String searchId, String commit) {
+			this.searchId = searchId;
+			this.commit = commit;
+			this.scheduledAt = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Everything needed to continue a search without the build that started it running
+	 */
+	static class Search {
+		final String id;
+		final GitBisectBuilder builder;
+		final String buildId;
+		final String nodeName;
+		final String workspacePath;
+		final String logPath;
+		final boolean pipelineStep;
+
+		Search(String id, GitBisectBuilder builder, Run<?, ?> build, FilePath workspace, File log, boolean pipelineStep) {
+			this.id = id;
+			// A copy, so reconfiguring the job doesn't change a search that is already running
+			this.builder = (GitBisectBuilder) Jenkins.XSTREAM2.fromXML(Jenkins.XSTREAM2.toXML(builder));
+			this.buildId = build.getExternalizableId();
+			Computer computer = workspace.toComputer();
+			this.nodeName = computer == null ? "" : computer.getName();
+			this.workspacePath = workspace.getRemote();
+			this.logPath = log.getAbsolutePath();
+			this.pipelineStep = pipelineStep;
+		}
+
+		/**
+		 * @return true if the search is waiting for another downstream build
+		 */
+		boolean resume(String commit, Run<?, ?> downstreamBuild, long scheduledAt) {
+			Run<?, ?> build = Run.fromExternalizableId(buildId);
+			Node node = nodeName.isEmpty() ? Jenkins.get() : Jenkins.get().getNode(nodeName);
+			if (build == null || node == null)
+			{
+				LOGGER.warning("Git bisect search " + id + " can not continue, its build or node no longer exist");
+				ended(new RuntimeException("The build or node of the search no longer exist"));
+				return false;
+			}
+
+			// Pipeline steps are still running and log to their own build, other searches to a file of their own
+			if (pipelineStep)
+			{
+				TaskListener listener = GitBisectStep.listenerOf(id);
+				return listener != null && resume(build, node, listener, commit, downstreamBuild, scheduledAt);
+			}
+
+			try (StreamTaskListener listener = new StreamTaskListener(new File(logPath), true, Charset.defaultCharset()))
+			{
+				return resume(build, node, listener, commit, downstreamBuild, scheduledAt);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Could not open the log of git bisect search " + id, e);
+				return false;
+			}
+		}
+
+		private boolean resume(Run<?, ?> build, Node node, TaskListener listener, String commit, 
+							   Run<?, ?> downstreamBuild, long scheduledAt) {
+			try {
+				boolean waiting = builder.resumeAsync(this, build, node.createPath(workspacePath), node.createLauncher(listener),
+													  listener, commit, downstreamBuild, scheduledAt);
+				if (!waiting)
+					ended(null);
+				return waiting;
+			} catch (Exception e) {
+				git.bisect.Logger logger = new git.bisect.Logger(listener);
+				logger.log("Cought exception - bisect stopping");
+				logger.printStackTrace(e);
+				ended(e);
+				return false;
+			} finally {
+				// The build may be finished already, its metrics are only kept if it is saved again
+				try {
+					build.save();
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Could not save the git bisect metrics of " + build, e);
+				}
+			}
+		}
+
+		/**
+		 * Stops the search after the downstream build of <code>commit</code> was cancelled while in the queue,
+		 * its saved state is kept so running it again continues where it stopped
+		 */
+		void cancelled(String commit) {
+			String reason = "The downstream build of revision " + commit + " was cancelled before it started, " +
+							"the search stopped. Run it again to continue from its saved state";
+			log(reason);
+			ended(new RuntimeException(reason));
+		}
+
+		private void log(String line) {
+			if (pipelineStep)
+			{
+				TaskListener listener = GitBisectStep.listenerOf(id);
+				if (listener != null)
+					new git.bisect.Logger(listener).log(line);
+				return;
+			}
+
+			try (StreamTaskListener listener = new StreamTaskListener(new File(logPath), true, Charset.defaultCharset()))
+			{
+				new git.bisect.Logger(listener).log(line);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Could not open the log of git bisect search " + id, e);
+			}
+		}
+
+		/**
+		 * Lets the Pipeline step that started the search return
+		 * @param error the reason the search stopped, or null if it stopped normally
+		 */
+		void ended(Throwable error) {
+			if (pipelineStep)
+				GitBisectStep.searchEnded(id, builder.getBisectState(), error);
+		}
+	}
+
+	public static AsyncBisections get() {
+		return ExtensionList.lookupSingleton(AsyncBisections.class);
+	}
+
+	/**
+	 * @return the id of a search that is not registered yet
+	 */
+	static String newSearchId() {
+		return UUID.randomUUID().toString();
+	}
+
+	/**
+	 * Starts keeping a search, a search of the same job and log that is still waiting is replaced.
+	 */
+	synchronized Search register(String id, GitBisectBuilder builder, Run<?, ?> build, FilePath workspace, File log, boolean pipelineStep) {
+		Search search = new Search(id, builder, build, workspace, log, pipelineStep);
+		for (Search waiting : new ArrayList<>(loaded().values()))
+		{
+			if (!waiting.logPath.equals(search.logPath))
+				continue;
+			
+			searches.remove(waiting.id);
+			waiting.ended(new RuntimeException("Replaced by a newer search with the same search identifier"));
+		}
+		searches.put(search.id, search);
+		save();
+		return search;
+	}
+
+	synchronized void remove(Search search) {
+		remove(search.id);
+	}
+
+	synchronized void remove(String id) {
+		if (loaded().remove(id) != null)
+			save();
+	}
+
+	/**
+	 * Forgets the search, and cancels its downstream build if it is still queued or aborts it if it is running
+	 */
+	void stop(String id) {
+		remove(id);
+
+		Queue queue = Jenkins.get().getQueue();
+		for (Queue.Item item : queue.getItems())
+			if (isOf(id, item.getAction(Marker.class)))
+				queue.cancel(item);
+
+		for (Computer computer : Jenkins.get().getComputers())
+		{
+			for (Executor executor : computer.getAllExecutors())
+			{
+				Object executable = executor.getCurrentExecutable();
+				if (executable instanceof Run && isOf(id, ((Run<?, ?>) executable).getAction(Marker.class)))
+					executor.interrupt(Result.ABORTED);
+			}
+		}
+	}
+
+	private static boolean isOf(String id, Marker marker) {
+		return marker != null && marker.searchId.equals(id);
+	}
+
+	synchronized int size() {
+		return loaded().size();
+	}
+
+	synchronized Search lookup(String id) {
+		return loaded().get(id);
+	}
+
+	@Override
+	public void onCompleted(Run<?, ?> run, TaskListener listener) {
+		Marker marker = run.getAction(Marker.class);
+		if (marker == null)
+			return;
+
+		Search search = lookup(marker.searchId);
+		if (search == null)
+			return;
+
+		Timer.get().submit(() -> {
+			if (!search.resume(marker.commit, run, marker.scheduledAt))
+				remove(search);
+		});
+	}
+
+	/**
+	 * Stops the searches whose downstream build was cancelled while in the queue
+	 */
+	@Extension
+	public static class CancelledBuilds extends QueueListener {
+		@Override
+		public void onLeft(Queue.LeftItem item) {
+			if (!item.isCancelled())
+				return;
+
+			Marker marker = item.getAction(Marker.class);
+			if (marker == null)
+				return;
+
+			AsyncBisections bisections = get();
+			Search search = bisections.lookup(marker.searchId);
+			if (search == null)
+				return;
+
+			bisections.remove(search);
+			Timer.get().submit(() -> search.cancelled(marker.commit));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private HashMap<String, Search> loaded() {
+		if (searches != null)
+			return searches;
+
+		searches = new HashMap<>();
+		XmlFile file = searchesFile();
+		if (file.exists())
+		{
+			try {
+				searches.putAll((Map<String, Search>) file.read());
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Could not read the waiting git bisect searches", e);
+			}
+		}
+		return searches;
+	}
+
+	private void save() {
+		try {
+			searchesFile().write(new HashMap<>(searches));
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not save the waiting git bisect searches", e);
+		}
+	}
+
+	private static XmlFile searchesFile() {
+		return new XmlFile(Jenkins.XSTREAM2, new File(Jenkins.get().getRootDir(), "git-bisect-async.xml"));
+	}
+}
@@ -1,71 +1,170 @@
 package git.bisect.builder;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
 
-import hudson.FilePath;
+import git.bisect.Logger;
+import hudson.XmlFile;
 import hudson.model.Run;
-import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
 
+/**
+ * Keeps the results of a search on the controller, 
+ * as a snapshot of its state and as an append-only journal in the format of 'git bisect log'.
+ * Each save only appends the entries of the verdicts recorded since the previous save,
+ * and once the journal has grown well past the log of the snapshot (over all the builds of the search)
+ * it is compacted by atomically replacing it with that log.
+ */
 public class BisectConfiguration {
-	TaskListener listener;
-	FilePath masterResultFile;
-	FilePath localResultsFile;
-	
-	public BisectConfiguration(Run<?,?> build, FilePath workspace, TaskListener listener, String searchIdentifier) throws IOException, InterruptedException{
-		this.listener = listener;
-    	
-		File rootDir = build.getParent().getRootDir();
-
-    	masterResultFile = new FilePath(rootDir).child(searchIdentifier);
-		localResultsFile = workspace.createTempFile("jenkins_git_bisect", masterResultFile.getName());
-
-		writeToLog("Local file to be used - " + localResultsFile.getRemote());
-		
-		fetchFromMaster();
+	// The number of lines the journal may have beyond the log of the snapshot before it is compacted
+	private static final int COMPACTION_SLACK = 20;
+	private static final Charset CHARSET = Charset.defaultCharset();
+
+	Logger logger;
+	File journal;
+	XmlFile stateFile;
+	List<String> journaledLines;
+
+	public BisectConfiguration(Run<?,?> build, Logger logger, String searchIdentifier) throws IOException {
+		this.logger = logger;
+
+		journal = new File(build.getParent().getRootDir(), searchIdentifier);
+		stateFile = new XmlFile(Jenkins.XSTREAM2, new File(journal.getParentFile(), searchIdentifier + ".state.xml"));
+		writeToLog("Results journal - " + journal.getAbsolutePath());
+
+		journaledLines = readJournal();
+		if (journaledLines.isEmpty())
+			writeToLog("Master does not have a previous results file, bisect will start from scratch. Is this the first run?");
 	}
-	
-	public void saveContent(String data) throws IOException, InterruptedException	{
-		writeTo(localResultsFile, data);
-		localResultsFile.copyTo(masterResultFile);
+
+	/**
+	 * A search that continues in another run logs there
+	 */
+	public void setLogger(Logger logger) {
+		this.logger = logger;
 	}
 
-	private void writeTo(FilePath file, String data) throws IOException, InterruptedException {
-		file.write(data, Charset.defaultCharset().name());
+	/**
+	 * Saves the snapshot and journals its new entries
+	 */
+	public void save(BisectState state) throws IOException {
+		List<String> entries = state.takeNewEntries();
+		List<String> log = state.toLog();
+		if (journaledLines.size() + entries.size() <= log.size() + COMPACTION_SLACK)
+			append(entries);
+		else
+			compact(log);
+		saveState(state);
 	}
-	
-	public void fetchFromMaster() throws IOException, InterruptedException {
-		if (hasPreviousConfiguration())
+
+	/**
+	 * Reads the journal line by line, an entry that was only partially written (for example due to a crash) is ignored.
+	 */
+	private List<String> readJournal() throws IOException {
+		List<String> lines = new ArrayList<>();
+		if (!journal.exists())
+			return lines;
+
+		try (BufferedReader reader = Files.newBufferedReader(journal.toPath(), CHARSET))
 		{
-			writeToLog("Copying latest results file from master to " + localResultsFile.getRemote());
-			masterResultFile.copyTo(localResultsFile);
+			for (String line = reader.readLine(); line != null; line = reader.readLine())
+				if (!line.isEmpty())
+					lines.add(line);
 		}
-		else
+		if (!lines.isEmpty() && !endsWithNewline())
 		{
-			writeToLog("Master does not have a previous results file, bisect will start from scratch. Is this the first run?");
-			// Write something to the file which will force it's creation
-			writeTo(localResultsFile, ""); 
+			writeToLog("Ignoring a partially written entry at the end of the results journal");
+			lines.remove(lines.size() - 1);
 		}
+		return lines;
 	}
-	
-	public FilePath localFile()
-	{
-		return localResultsFile;
+
+	private boolean endsWithNewline() throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(journal, "r"))
+		{
+			if (file.length() == 0)
+				return true;
+			file.seek(file.length() - 1);
+			return file.read() == '\n';
+		}
 	}
-	
-	public void cleanup() throws IOException, InterruptedException
-	{
-		localResultsFile.delete();
+
+	/**
+	 * The lines of the journal, as read when the search was loaded and as saved since
+	 */
+	public List<String> getJournaledLines() {
+		return journaledLines;
+	}
+
+	/**
+	 * @return the snapshot of the search, or null if it was never saved
+	 */
+	public BisectState loadState() throws IOException {
+		if (!stateFile.exists())
+			return null;
+
+		writeToLog("Continuing from the saved state - " + stateFile.getFile().getAbsolutePath());
+		return (BisectState) stateFile.read();
+	}
+
+	public void saveState(BisectState state) throws IOException {
+		stateFile.write(state);
+	}
+
+	/**
+	 * The log of a search that continues on the controller after its build released the executor
+	 */
+	public File getAsyncLog() {
+		return new File(journal.getParentFile(), journal.getName() + ".log");
 	}
 
-	public boolean hasPreviousConfiguration() throws IOException, InterruptedException {
-		return masterResultFile.exists() && 
-			   !masterResultFile.readToString().isEmpty();
+	public boolean hasPreviousConfiguration() {
+		return !journaledLines.isEmpty();
 	}
-	
+
+	private void append(List<String> newLines) throws IOException {
+		if (newLines.isEmpty())
+			return;
+
+		try (FileOutputStream out = new FileOutputStream(journal, true))
+		{
+			out.write(toBytes(newLines));
+			out.getFD().sync();
+		}
+
+		journaledLines.addAll(newLines);
+	}
+
+	private void compact(List<String> lines) throws IOException {
+		File compacted = new File(journal.getParentFile(), journal.getName() + ".compacting");
+		try (FileOutputStream out = new FileOutputStream(compacted))
+		{
+			out.write(toBytes(lines));
+			out.getFD().sync();
+		}
+		Files.move(compacted.toPath(), journal.toPath(),
+				   StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+		journaledLines = new ArrayList<>(lines);
+	}
+
+	private static byte[] toBytes(List<String> lines) {
+		StringBuilder content = new StringBuilder();
+		for (String line : lines)
+			content.append(line).append('\n');
+		return content.toString().getBytes(CHARSET);
+	}
+
 	private void writeToLog(String line)
 	{
-		listener.getLogger().println("[GIT-BISECT]: " + line);
+		logger.log(line);
 	}
 }
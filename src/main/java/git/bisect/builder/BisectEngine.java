@@ -0,0 +1,248 @@
+package git.bisect.builder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import git.bisect.CommitPair;
+import git.bisect.Logger;
+import git.bisect.builder.CommandsRunner.BisectionResult;
+import git.bisect.builder.CommandsRunner.CommitState;
+
+/**
+ * The operations a bisection needs from the repository.
+ * {@link CommandsRunner} runs them with the git executable, 
+ * {@link JGitBisectEngine} computes them in memory from a commit graph loaded once.
+ */
+public interface BisectEngine {
+	void resetBisection() throws IOException, InterruptedException;
+	
+	void startBisection() throws IOException, InterruptedException;
+	
+	/**
+	 * Only commits that touch the given paths will be candidates, must be set before the search starts.
+	 */
+	void setPathspecs(List<String> pathspecs);
+	
+	/**
+	 * Splits a configured pathspecs field, one pathspec per line.
+	 */
+	static List<String> pathspecsOf(String pathspecs)
+	{
+		List<String> parsed = new ArrayList<>();
+		if (pathspecs == null)
+			return parsed;
+		
+		for (String pathspec : pathspecs.split("\\R"))
+			if (!pathspec.trim().isEmpty())
+				parsed.add(pathspec.trim());
+		return parsed;
+	}
+	
+	/**
+	 * Only follows the first parent of merges, so only the merges of the mainline are candidates.
+	 * Applies to searches started or restored after it is set.
+	 */
+	void setFirstParent(boolean firstParent);
+	
+	/**
+	 * Engines that run git processes count them and the time they took
+	 */
+	default void setMetrics(BisectMetrics metrics) {
+	}
+	
+	/**
+	 * Counts the commits between the current good and bad revisions.
+	 * @param withPathspecs count only the commits that touch the paths given to {@link #setPathspecs(List)}
+	 */
+	int rangeSize(boolean withPathspecs) throws IOException, InterruptedException;
+	
+	BisectionResult markCommitAs(String commit, CommitState state) throws IOException, InterruptedException;
+	
+	/**
+	 * Continues a search from its snapshot, only its current bounds and skipped revisions are applied.
+	 */
+	BisectionResult restore(BisectState state) throws IOException, InterruptedException;
+	
+	/**
+	 * The log of the search the engine runs for
+	 */
+	Logger logger();
+	
+	/**
+	 * Resolves all the revisions in a single pass over the repository.
+	 * @return the full commit id of each revision, or null for revisions that don't name a commit
+	 */
+	Map<String, String> resolveCommits(Collection<String> revisions) throws IOException, InterruptedException;
+	
+	boolean isAncestor(String ancestor, String descendant) throws IOException, InterruptedException;
+	
+	/**
+	 * @return the number of commits reachable from only one of the two revisions, how far apart they are in history
+	 */
+	int distanceBetween(String commit, String other) throws IOException, InterruptedException;
+	
+	/**
+	 * @return the id of the tree of <code>commit</code>, revisions with the same content share it
+	 */
+	String treeOf(String commit) throws IOException, InterruptedException;
+	
+	/**
+	 * Measures how much each commit changed compared to its first parent.
+	 */
+	Map<String, ChangeSize> changeSizes(Collection<String> commits) throws IOException, InterruptedException;
+	
+	/**
+	 * Checks that both ends of the range are commits and that they are not swapped.
+	 */
+	default boolean validRange(CommitPair range) throws IOException, InterruptedException
+	{
+		Map<String, String> commits = resolveCommits(Arrays.asList(range.goodCommit, range.badCommit));
+		boolean allExist = true;
+		for (Map.Entry<String, String> commit : commits.entrySet())
+		{
+			if (commit.getValue() == null)
+			{
+				logger().log("The commit - " + commit.getKey() + " does not exist in the repository. (did you forget adding the remote name?)");
+				allExist = false;
+			}
+		}
+		
+		if (!allExist)
+			return false;
+		
+		String good = commits.get(range.goodCommit);
+		String bad = commits.get(range.badCommit);
+		if (isAncestor(good, bad))
+			return true;
+		
+		if (isAncestor(bad, good))
+		{
+			logger().log("The good commit - " + range.goodCommit + " is newer than the bad commit - " + range.badCommit + ", were they swapped?");
+			return false;
+		}
+		
+		logger().log("Warning - the good commit - " + range.goodCommit + " is not an ancestor of the bad commit - " + 
+				   range.badCommit + ", their merge bases will have to be tested as well");
+		return true;
+	}
+	
+	/**
+	 * Lists the revisions that may still be the first bad commit and can be tested, newest first.
+	 * The current bad revision itself and skipped revisions are not part of the list.
+	 */
+	List<String> remainingCandidates() throws IOException, InterruptedException;
+	
+	/**
+	 * Weighs the revisions that may still be the first bad commit, skipped revisions included
+	 */
+	CandidateWeights candidateWeights() throws IOException, InterruptedException;
+	
+	/**
+	 * Computes the revision that would be tested next if <code>commit</code> was marked with the given state.
+	 * @return the next revision, or null if marking <code>commit</code> would complete the search
+	 * or the next revision can't be predicted (when it would be a skipped one)
+	 */
+	String nextProbeAssuming(String commit, CommitState state) throws IOException, InterruptedException;
+	
+	/**
+	 * Picks the revision that splits the remaining candidates the most evenly while keeping away from skipped revisions,
+	 * since revisions next to one that can't be tested are often broken the same way.
+	 * The distance kept from them grows with the number of skipped revisions in the range.
+	 * @return null if only skipped revisions are left
+	 */
+	default String probeAwayFrom(Collection<String> skipped) throws IOException, InterruptedException
+	{
+		CandidateWeights weights = candidateWeights();
+		// Along history the weights of revisions differ by the number of candidates between them
+		List<Integer> skippedWeights = new ArrayList<>();
+		for (String skippedRevision : skipped)
+			if (weights.skipped().contains(skippedRevision))
+				skippedWeights.add(weights.weightOf(skippedRevision));
+		
+		List<String> testable = weights.testable();
+		for (int distance = skippedWeights.size() + 1; distance >= 1; distance--)
+		{
+			String best = null;
+			int bestBalance = -1;
+			for (String candidate : testable)
+			{
+				if (distanceToClosest(weights.weightOf(candidate), skippedWeights) < distance)
+					continue;
+				
+				int balance = weights.balanceOf(candidate);
+				if (balance > bestBalance)
+				{
+					best = candidate;
+					bestBalance = balance;
+				}
+			}
+			
+			if (best != null)
+				return best;
+		}
+		return null;
+	}
+	
+	static int distanceToClosest(int weight, List<Integer> weights)
+	{
+		int closest = Integer.MAX_VALUE;
+		for (int other : weights)
+			closest = Math.min(closest, Math.abs(weight - other));
+		return closest;
+	}
+	
+	/**
+	 * Logs how many commits of the range were pruned up front by the pathspecs.
+	 */
+	default void logPrunedCommits(List<String> pathspecs) throws IOException, InterruptedException
+	{
+		if (pathspecs.isEmpty())
+			return;
+		
+		int total = rangeSize(false);
+		int relevant = rangeSize(true);
+		logger().log("Only " + relevant + " of the " + total + " commits in the range touch " + pathspecs + 
+				   ", " + (total - relevant) + " commits were pruned up front");
+	}
+	
+	/**
+	 * Picks up to <code>probes</code> revisions that split the remaining range in even parts,
+	 * the i-th probe is the testable revision whose weight is the closest to i / (probes + 1) of the candidates.
+	 * The returned list is ordered newest first.
+	 */
+	default List<String> evenlySpacedProbes(int probes) throws IOException, InterruptedException
+	{
+		CandidateWeights weights = candidateWeights();
+		List<String> testable = weights.testable();
+		if (testable.size() <= probes)
+			return testable;
+		
+		Set<String> selected = new HashSet<>();
+		for (int i = 1; i <= probes; i++)
+		{
+			double target = (double) weights.total() * i / (probes + 1);
+			String closest = null;
+			double closestDistance = Double.MAX_VALUE;
+			for (String candidate : testable)
+			{
+				double distance = Math.abs(weights.weightOf(candidate) - target);
+				if (distance < closestDistance && !selected.contains(candidate))
+				{
+					closest = candidate;
+					closestDistance = distance;
+				}
+			}
+			selected.add(closest);
+		}
+		
+		List<String> ordered = new ArrayList<>(testable);
+		ordered.retainAll(selected);
+		return ordered;
+	}
+}
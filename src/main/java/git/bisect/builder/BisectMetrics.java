@@ -0,0 +1,110 @@
+package git.bisect.builder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import hudson.model.Action;
+import hudson.model.Api;
+import hudson.model.Run;
+
+/**
+ * Where the time of the searches run by a bisect build went: git commands, waiting in the queue
+ * for the downstream project and the downstream builds themselves.
+ * Available as JSON at BUILD_URL/git-bisect-metrics/api/json, every sample is also added to {@link BisectMetricsAggregate}.
+ */
+@ExportedBean
+public class BisectMetrics implements Action {
+	private int gitCommands;
+	private long gitMillis;
+	private int downstreamBuilds;
+	private long queueWaitMillis;
+	private long downstreamMillis;
+	private final List<Long> stepMillis = new ArrayList<>();
+
+	/**
+	 * @return the metrics of the build, they are added to it the first time
+	 */
+	public static synchronized BisectMetrics of(Run<?, ?> build) {
+		BisectMetrics metrics = build.getAction(BisectMetrics.class);
+		if (metrics == null)
+		{
+			metrics = new BisectMetrics();
+			build.addAction(metrics);
+		}
+		return metrics;
+	}
+
+	public synchronized void recordGitCommand(long millis) {
+		gitCommands += 1;
+		gitMillis += millis;
+		BisectMetricsAggregate.get().recordGitCommand(millis);
+	}
+
+	public synchronized void recordDownstreamBuild(long queueWaitMillis, long buildMillis) {
+		downstreamBuilds += 1;
+		this.queueWaitMillis += queueWaitMillis;
+		downstreamMillis += buildMillis;
+		BisectMetricsAggregate.get().recordDownstreamBuild(queueWaitMillis, buildMillis);
+	}
+
+	/**
+	 * A step is everything from picking a revision until the search moves past it
+	 */
+	public synchronized void recordStep(long millis) {
+		stepMillis.add(millis);
+		BisectMetricsAggregate.get().recordStep(millis);
+	}
+
+	@Exported
+	public synchronized int getGitCommands() {
+		return gitCommands;
+	}
+
+	@Exported
+	public synchronized long getGitMillis() {
+		return gitMillis;
+	}
+
+	@Exported
+	public synchronized int getDownstreamBuilds() {
+		return downstreamBuilds;
+	}
+
+	@Exported
+	public synchronized long getQueueWaitMillis() {
+		return queueWaitMillis;
+	}
+
+	@Exported
+	public synchronized long getDownstreamMillis() {
+		return downstreamMillis;
+	}
+
+	@Exported
+	public synchronized List<Long> getStepMillis() {
+		return new ArrayList<>(stepMillis);
+	}
+
+	public Api getApi() {
+		return new Api(this);
+	}
+
+	// The metrics are read by tools through the remote API, the build page gets no link to them
+	@Override
+	public String getIconFileName() {
+		return null;
+	}
+
+	@Override
+	public String getDisplayName() {
+		return "Git Bisect Metrics";
+	}
+
+	@Override
+	public String getUrlName() {
+		return "git-bisect-metrics";
+	}
+}
@@ -0,0 +1,172 @@
+package git.bisect.builder;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.Api;
+import hudson.model.RootAction;
+
+/**
+ * Controller wide metrics of the searches, for sizing the executor pools that bisect traffic uses.
+ * Percentiles are computed over the most recent samples only, and the metrics start over when the controller restarts.
+ *
+ * Available as JSON at JENKINS_URL/git-bisect-metrics/api/json.
+ */
+@Extension
+@ExportedBean
+public class BisectMetricsAggregate implements RootAction {
+	private static final int MAX_SAMPLES = Integer.getInteger(BisectMetricsAggregate.class.getName() + ".maxSamples", 1000);
+
+	private final AtomicInteger runningSearches = new AtomicInteger();
+	private final ArrayDeque<Long> stepMillis = new ArrayDeque<>();
+	private final ArrayDeque<Long> queueWaitMillis = new ArrayDeque<>();
+	private final ArrayDeque<Long> downstreamMillis = new ArrayDeque<>();
+	private final ArrayDeque<Long> buildsPerSearch = new ArrayDeque<>();
+	private long gitCommands;
+	private long gitMillis;
+	private long completedSearches;
+
+	public static BisectMetricsAggregate get() {
+		return ExtensionList.lookupSingleton(BisectMetricsAggregate.class);
+	}
+
+	/**
+	 * Counts a search that holds an executor until {@link #searchStopped()}
+	 */
+	public void searchStarted() {
+		runningSearches.incrementAndGet();
+	}
+
+	public void searchStopped() {
+		runningSearches.decrementAndGet();
+	}
+
+	public synchronized void recordCompletedSearch(int downstreamBuilds) {
+		completedSearches += 1;
+		addSample(buildsPerSearch, downstreamBuilds);
+	}
+
+	public synchronized void recordGitCommand(long millis) {
+		gitCommands += 1;
+		gitMillis += millis;
+	}
+
+	public synchronized void recordDownstreamBuild(long queueWait, long buildMillis) {
+		addSample(queueWaitMillis, queueWait);
+		addSample(downstreamMillis, buildMillis);
+	}
+
+	public synchronized void recordStep(long millis) {
+		addSample(stepMillis, millis);
+	}
+
+	/**
+	 * Searches holding an executor and searches waiting for a downstream build without one
+	 */
+	@Exported
+	public int getActiveSearches() {
+		return runningSearches.get() + AsyncBisections.get().size();
+	}
+
+	@Exported
+	public synchronized long getCompletedSearches() {
+		return completedSearches;
+	}
+
+	@Exported
+	public synchronized long getBuildsPerSearchP50() {
+		return percentile(buildsPerSearch, 50);
+	}
+
+	@Exported
+	public synchronized long getBuildsPerSearchP95() {
+		return percentile(buildsPerSearch, 95);
+	}
+
+	@Exported
+	public synchronized long getStepMillisP50() {
+		return percentile(stepMillis, 50);
+	}
+
+	@Exported
+	public synchronized long getStepMillisP95() {
+		return percentile(stepMillis, 95);
+	}
+
+	@Exported
+	public synchronized long getQueueWaitMillisP50() {
+		return percentile(queueWaitMillis, 50);
+	}
+
+	@Exported
+	public synchronized long getQueueWaitMillisP95() {
+		return percentile(queueWaitMillis, 95);
+	}
+
+	@Exported
+	public synchronized long getDownstreamMillisP50() {
+		return percentile(downstreamMillis, 50);
+	}
+
+	@Exported
+	public synchronized long getDownstreamMillisP95() {
+		return percentile(downstreamMillis, 95);
+	}
+
+	@Exported
+	public synchronized long getGitCommands() {
+		return gitCommands;
+	}
+
+	@Exported
+	public synchronized long getGitMillis() {
+		return gitMillis;
+	}
+
+	public Api getApi() {
+		return new Api(this);
+	}
+
+	private static void addSample(ArrayDeque<Long> samples, long sample) {
+		samples.addLast(sample);
+		if (samples.size() > MAX_SAMPLES)
+			samples.removeFirst();
+	}
+
+	/**
+	 * The nearest-rank percentile, 0 if there are no samples
+	 */
+	static long percentile(ArrayDeque<Long> samples, int percent) {
+		if (samples.isEmpty())
+			return 0;
+
+		List<Long> sorted = new ArrayList<>(samples);
+		Collections.sort(sorted);
+		int rank = (int) Math.ceil(percent / 100.0 * sorted.size());
+		return sorted.get(Math.max(0, rank - 1));
+	}
+
+	// Polled as JSON by whoever sizes the executor pools, not worth a link on every page
+	@Override
+	public String getIconFileName() {
+		return null;
+	}
+
+	@Override
+	public String getDisplayName() {
+		return "Git Bisect Metrics";
+	}
+
+	@Override
+	public String getUrlName() {
+		return "git-bisect-metrics";
+	}
+}
@@ -0,0 +1,227 @@
+package git.bisect.builder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import git.bisect.builder.CommandsRunner.CommitState;
+
+/**
+ * A compact snapshot of a search, enough to continue it without replaying its history:
+ * the current bounds, the verdict of every tested revision and the runs of the revision being tested.
+ * Every verdict is also kept as a journal entry in the format of 'git bisect log', until it is taken to be journaled.
+ */
+public class BisectState {
+	private static final String COMPLETION_PREFIX = "# first bad commit:";
+
+	public static class Attempts {
+		public int failures;
+		public int successes;
+	}
+
+	/**
+	 * The estimated duration of a build of the tested revision next to how long its builds actually took.
+	 */
+	public static class StepCost {
+		public String commit;
+		public long estimatedMillis;
+		public long actualMillis;
+		public int builds;
+	}
+
+	String bad;
+	LinkedHashSet<String> goods = new LinkedHashSet<>();
+	LinkedHashSet<String> skipped = new LinkedHashSet<>();
+	LinkedHashMap<String, CommitState> verdicts = new LinkedHashMap<>();
+	HashMap<String, Attempts> attempts = new HashMap<>();
+	String firstBadCommit;
+	String drilledMerge;
+	ArrayList<StepCost> stepCosts = new ArrayList<>();
+	int downstreamBuilds;
+	LinkedHashMap<String, String> builtOn = new LinkedHashMap<>();
+	transient List<String> newEntries = new ArrayList<>();
+
+	/**
+	 * Folds the verdicts of the lines of a 'git bisect log' into a snapshot, in order.
+	 * A verdict that follows the completion line continues the search (for example inside the branch of a merge).
+	 * Only the completion line itself completes the search, not a comment whose commit subject happens to mention it.
+	 */
+	public static BisectState fromLog(List<String> log) {
+		BisectState state = new BisectState();
+		for (String line : log)
+		{
+			if (line.startsWith(COMPLETION_PREFIX))
+			{
+				state.complete(CommandsRunner.revisionFromLine(line));
+				continue;
+			}
+
+			String[] words = line.trim().split("\\s+");
+			if (words.length < 4 || !words[0].equals("git") || !words[1].equals("bisect"))
+				continue;
+
+			for (String commit : Arrays.asList(words).subList(3, words.length))
+			{
+				state.firstBadCommit = null;
+				if (words[2].equals("good"))
+					state.recordVerdict(commit, CommitState.Good);
+				else if (words[2].equals("bad"))
+					state.recordVerdict(commit, CommitState.Bad);
+				else if (words[2].equals("skip"))
+					state.recordVerdict(commit, CommitState.Skip);
+			}
+		}
+		// The log is journaled already
+		state.newEntries.clear();
+		return state;
+	}
+
+	/**
+	 * The whole search as a 'git bisect log', the journal is compacted to it
+	 */
+	public List<String> toLog() {
+		List<String> log = new ArrayList<>();
+		log.add("git bisect start");
+		if (bad != null)
+			log.add("git bisect bad " + bad);
+		for (String good : goods)
+			log.add("git bisect good " + good);
+		for (String skippedCommit : skipped)
+			log.add("git bisect skip " + skippedCommit);
+		if (firstBadCommit != null)
+			log.add(completionEntry(firstBadCommit));
+		return log;
+	}
+
+	/**
+	 * @return the journal entries of the verdicts recorded since the last call
+	 */
+	public List<String> takeNewEntries() {
+		List<String> entries = newEntries;
+		newEntries = new ArrayList<>();
+		return entries;
+	}
+
+	private static String completionEntry(String firstBadCommit) {
+		return COMPLETION_PREFIX + " [" + firstBadCommit + "]";
+	}
+
+	public void recordVerdict(String commit, CommitState state) {
+		newEntries.add("git bisect " + state.name().toLowerCase() + " " + commit);
+		verdicts.put(commit, state);
+		attempts.remove(commit);
+		if (state == CommitState.Bad)
+			bad = commit;
+		else if (state == CommitState.Skip)
+			skipped.add(commit);
+		else
+			goods.add(commit);
+	}
+
+	public void recordAttempt(String commit, boolean wasSuccessful) {
+		Attempts commitAttempts = attempts.computeIfAbsent(commit, key -> new Attempts());
+		if (wasSuccessful)
+			commitAttempts.successes += 1;
+		else
+			commitAttempts.failures += 1;
+	}
+
+	public void countDownstreamBuild() {
+		downstreamBuilds += 1;
+	}
+
+	public Attempts attemptsOf(String commit) {
+		Attempts commitAttempts = attempts.get(commit);
+		return commitAttempts == null ? new Attempts() : commitAttempts;
+	}
+
+	public void recordStepCost(String commit, long estimatedMillis, long actualMillis, int builds) {
+		StepCost cost = new StepCost();
+		cost.commit = commit;
+		cost.estimatedMillis = estimatedMillis;
+		cost.actualMillis = actualMillis;
+		cost.builds = builds;
+		stepCosts.add(cost);
+	}
+
+	public void complete(String firstBadCommit) {
+		newEntries.add(completionEntry(firstBadCommit));
+		this.firstBadCommit = firstBadCommit;
+		attempts.clear();
+	}
+
+	/**
+	 * Continues a completed first-parent search inside the branch of the merge it found,
+	 * the merge is bad and its first parent is good.
+	 */
+	public void drillInto(String merge, String firstParent) {
+		drilledMerge = merge;
+		firstBadCommit = null;
+		bad = merge;
+		goods.add(firstParent);
+		newEntries.add("git bisect good " + firstParent);
+	}
+
+	public boolean isDrilledDown() {
+		return drilledMerge != null;
+	}
+
+	public String getDrilledMerge() {
+		return drilledMerge;
+	}
+
+	public boolean isComplete() {
+		return firstBadCommit != null;
+	}
+
+	public boolean hasBounds() {
+		return bad != null && !goods.isEmpty();
+	}
+
+	public String getBad() {
+		return bad;
+	}
+
+	public LinkedHashSet<String> getGoods() {
+		return goods;
+	}
+
+	public LinkedHashSet<String> getSkipped() {
+		return skipped;
+	}
+
+	public String getFirstBadCommit() {
+		return firstBadCommit;
+	}
+
+	public List<StepCost> getStepCosts() {
+		return stepCosts;
+	}
+
+	/**
+	 * The node that built each tested revision, the most recently built revision last
+	 */
+	public LinkedHashMap<String, String> getBuiltOn() {
+		return builtOn;
+	}
+
+	/**
+	 * The number of downstream builds the search ran, over all of its bisect builds
+	 */
+	public int getDownstreamBuilds() {
+		return downstreamBuilds;
+	}
+
+	// Snapshots saved before step costs and nodes were recorded don't have them
+	private Object readResolve() {
+		if (stepCosts == null)
+			stepCosts = new ArrayList<>();
+		if (builtOn == null)
+			builtOn = new LinkedHashMap<>();
+		newEntries = new ArrayList<>();
+		return this;
+	}
+}
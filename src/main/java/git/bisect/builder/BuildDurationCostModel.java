@@ -0,0 +1,60 @@
+package git.bisect.builder;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Uses the measured durations of earlier builds of the tester project.
+ * Builds of nearby commits tend to take similar times, so a candidate without a build of its own
+ * gets the duration of the closest measured candidate, or the estimated duration of the tester project if there is none.
+ */
+public class BuildDurationCostModel implements ProbeCostModel {
+	private final HashMap<String, Long> measured;
+	private final long defaultDuration;
+
+	/**
+	 * @param measured the duration in milliseconds of previous builds by commit id
+	 */
+	public BuildDurationCostModel(Map<String, Long> measured, long defaultDuration) {
+		this.measured = new HashMap<>(measured);
+		this.defaultDuration = defaultDuration;
+	}
+
+	@Override
+	public Map<String, Long> estimate(List<String> candidates) {
+		// The closest measured candidate on each side, found with one pass in each direction
+		int[] previous = new int[candidates.size()];
+		int[] next = new int[candidates.size()];
+		int lastMeasured = -1;
+		for (int i = 0; i < candidates.size(); i++)
+		{
+			if (measured.containsKey(candidates.get(i)))
+				lastMeasured = i;
+			previous[i] = lastMeasured;
+		}
+		lastMeasured = -1;
+		for (int i = candidates.size() - 1; i >= 0; i--)
+		{
+			if (measured.containsKey(candidates.get(i)))
+				lastMeasured = i;
+			next[i] = lastMeasured;
+		}
+
+		HashMap<String, Long> costs = new HashMap<>();
+		for (int i = 0; i < candidates.size(); i++)
+		{
+			int closest = previous[i];
+			if (closest == -1 || (next[i] != -1 && next[i] - i < i - closest))
+				closest = next[i];
+			costs.put(candidates.get(i), closest == -1 ? defaultDuration : measured.get(candidates.get(closest)));
+		}
+		return costs;
+	}
+
+	@Override
+	public void recordActual(String commit, long millis) {
+		measured.put(commit, millis);
+	}
+}
@@ -0,0 +1,61 @@
+package git.bisect.builder;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The revisions that may still be the first bad commit, newest first, with their weights.
+ * A revision's weight is the number of candidates it reaches, itself included:
+ * if it is bad that many candidates are left, if it is good the other (total - weight) are.
+ * The bad revision reaches every candidate, so its weight is the total.
+ */
+public class CandidateWeights {
+	private final LinkedHashMap<String, Integer> weights;
+	private final int total;
+	private final Set<String> skipped;
+
+	public CandidateWeights(LinkedHashMap<String, Integer> weights, Set<String> skipped) {
+		this.weights = weights;
+		this.total = weights.size();
+		this.skipped = new LinkedHashSet<>(skipped);
+		this.skipped.retainAll(weights.keySet());
+	}
+
+	/**
+	 * The number of candidates, the bad revision included
+	 */
+	public int total() {
+		return total;
+	}
+
+	public int weightOf(String candidate) {
+		return weights.get(candidate);
+	}
+
+	/**
+	 * The candidates a build can still tell something about, newest first:
+	 * neither the bad revision nor skipped revisions.
+	 */
+	public List<String> testable() {
+		List<String> testable = new ArrayList<>();
+		for (String candidate : weights.keySet())
+			if (weights.get(candidate) < total && !skipped.contains(candidate))
+				testable.add(candidate);
+		return testable;
+	}
+
+	public Set<String> skipped() {
+		return skipped;
+	}
+
+	/**
+	 * How evenly testing <code>candidate</code> splits the candidates, the number left on the smaller side
+	 */
+	public int balanceOf(String candidate) {
+		int weight = weights.get(candidate);
+		return Math.min(weight, total - weight);
+	}
+}
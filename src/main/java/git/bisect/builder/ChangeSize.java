@@ -0,0 +1,18 @@
+package git.bisect.builder;
+
+import java.io.Serializable;
+
+/**
+ * How much a commit changed compared to its first parent.
+ */
+public class ChangeSize implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public final int touchedPaths;
+	public final int changedLines;
+
+	public ChangeSize(int touchedPaths, int changedLines) {
+		this.touchedPaths = touchedPaths;
+		this.changedLines = changedLines;
+	}
+}
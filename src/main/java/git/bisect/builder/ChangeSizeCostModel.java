@@ -0,0 +1,47 @@
+package git.bisect.builder;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assumes bigger commits take longer to test, since they invalidate more of the build cache.
+ * A commit of average size costs the estimated duration of the tester project,
+ * the cost grows (or shrinks) with the commit's size, down to half of that duration.
+ */
+public class ChangeSizeCostModel implements ProbeCostModel {
+	private final BisectEngine engine;
+	private final long baseDuration;
+	private final boolean byTouchedPaths;
+
+	/**
+	 * @param byTouchedPaths measure commits by the number of paths they touch instead of the lines they change
+	 */
+	public ChangeSizeCostModel(BisectEngine engine, long baseDuration, boolean byTouchedPaths) {
+		this.engine = engine;
+		this.baseDuration = baseDuration;
+		this.byTouchedPaths = byTouchedPaths;
+	}
+
+	@Override
+	public Map<String, Long> estimate(List<String> candidates) throws IOException, InterruptedException {
+		Map<String, ChangeSize> changes = engine.changeSizes(candidates);
+
+		HashMap<String, Long> sizes = new HashMap<>();
+		double averageSize = 0;
+		for (String candidate : candidates)
+		{
+			ChangeSize change = changes.get(candidate);
+			long size = change == null ? 0 : (byTouchedPaths ? change.touchedPaths : change.changedLines);
+			sizes.put(candidate, size);
+			averageSize += size;
+		}
+		averageSize = Math.max(1, averageSize / candidates.size());
+
+		HashMap<String, Long> costs = new HashMap<>();
+		for (String candidate : candidates)
+			costs.put(candidate, (long)(baseDuration * (0.5 + 0.5 * sizes.get(candidate) / averageSize)));
+		return costs;
+	}
+}
@@ -1,19 +1,53 @@
 package git.bisect.builder;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.URIish;
+import org.jenkinsci.plugins.gitclient.Git;
+import org.jenkinsci.plugins.gitclient.GitClient;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
+import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
+
+import git.bisect.CommitPair;
 import git.bisect.Logger;
+import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.console.LineTransformationOutputStream;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.plugins.git.GitException;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.UserRemoteConfig;
+import hudson.scm.SCM;
+import jenkins.triggers.SCMTriggerItem;
 
-public class CommandsRunner {
+public class CommandsRunner implements BisectEngine {
+	// A command that floods stderr (for example with a warning per ref) only keeps this much of it
+	static final int MAX_CAPTURED_STDERR = 64 * 1024;
+	private static final String COMPLETION_TOKEN = "first bad commit";
+	// A shallow clone is fetched at least this many commits deep first, and twice as deep every following fetch
+	private static final int INITIAL_FETCH_DEPTH = 64;
+	// Past this depth the rest of the history is fetched at once
+	private static final int MAX_FETCH_DEPTH = 64 * 1024;
+	
 	public static class BisectionResult
 	{
 		public BisectionResult(String commit, boolean isDone) {
@@ -39,7 +73,7 @@ public class CommandsRunner {
 	}
 	
 	public static enum CommitState{
-		Bad, Good;
+		Bad, Good, Skip;
 		
 		public static CommitState fromBool(boolean flag)
 		{
@@ -51,65 +85,237 @@ public class CommandsRunner {
 	FilePath workspace;
 	Launcher launcher;
 	TaskListener listener;
+	Logger logger;
 	String gitCommand;
+	List<String> pathspecs = new ArrayList<>();
+	boolean firstParent = false;
+	BisectMetrics metrics;
 	
-	public CommandsRunner(Run<?,?> build, FilePath workspace, Launcher launcher, TaskListener listener, String gitCommand) {
+	public CommandsRunner(Run<?,?> build, FilePath workspace, Launcher launcher, Logger logger, String gitCommand) {
 		this.build = build;
 		this.workspace = workspace;
 		this.launcher = launcher;
-		this.listener = listener;
+		this.listener = logger.getListener();
+		this.logger = logger;
 		this.gitCommand = gitCommand;
 		writeToLog("Using the git command - '" + gitCommand + "'");
 	}
 	
-	public CommandOutput getBisectionLog() throws IOException, InterruptedException {
-		return runCommand("bisect", "log");
-	}
-	
+	@Override
 	public BisectionResult markCommitAs(String commit, CommitState state_) throws IOException, InterruptedException
 	{
 		String state = "good";
 		if (state_ == CommitState.Bad)
 			state = "bad";
+		else if (state_ == CommitState.Skip)
+			state = "skip";
 		
 		writeToLog("Marking commit " + commit + " as - " + state);
-		CommandOutput bisectOutput = runCommand("bisect", state, commit);
+		CommandOutput bisectOutput = runBisectCommand("bisect", state, commit);
 		return parseBisectOutput(bisectOutput);
 	}
 	
+	@Override
+	public Logger logger()
+	{
+		return logger;
+	}
+	
+	@Override
 	public void resetBisection() throws IOException, InterruptedException
 	{
 		runCommandAndForget("bisect", "reset");
 	}
 	
+	@Override
 	public void startBisection() throws IOException, InterruptedException
 	{
-		runCommandAndForget("bisect", "start", "--no-checkout");
+		runCommandAndForget(withRangeLimits("bisect", "start", "--no-checkout"));
+	}
+	
+	@Override
+	public void setPathspecs(List<String> pathspecs)
+	{
+		this.pathspecs = new ArrayList<>(pathspecs);
 	}
 	
-	public BisectionResult bisectFromFile(FilePath file) throws IOException, InterruptedException
+	@Override
+	public void setMetrics(BisectMetrics metrics)
 	{
-		String completionLine = findCompletionToken(file);
-		if (completionLine != null)
-			return new BisectionResult(revisionFromLine(completionLine), true);
+		this.metrics = metrics;
+	}
+	
+	@Override
+	public void setFirstParent(boolean firstParent)
+	{
+		this.firstParent = firstParent;
+	}
+	
+	@Override
+	public int rangeSize(boolean withPathspecs) throws IOException, InterruptedException
+	{
+		return Integer.parseInt(runCommand(withRangeLimits(withPathspecs, 
+				"rev-list", "--count", "refs/bisect/bad", "--not", "--glob=refs/bisect/good-*")).stdout);
+	}
+	
+	private String[] withRangeLimits(String... args)
+	{
+		return withRangeLimits(true, args);
+	}
+	
+	/**
+	 * Adds '--first-parent' when only the first parents are followed, 
+	 * and appends the pathspecs after a '--' separator
+	 */
+	private String[] withRangeLimits(boolean withPathspecs, String... args)
+	{
+		List<String> command = new ArrayList<>(Arrays.asList(args));
+		if (firstParent)
+			command.add("--first-parent");
 		
-		CommandOutput bisectOutput = runCommand("bisect", "replay", file.getName());
-		return parseBisectOutput(bisectOutput);
+		if (withPathspecs && !pathspecs.isEmpty())
+		{
+			command.add("--");
+			command.addAll(pathspecs);
+		}
+		return command.toArray(new String[0]);
+	}
+	
+	@Override
+	public List<String> remainingCandidates() throws IOException, InterruptedException
+	{
+		List<String> candidates = new ArrayList<>();
+		runCommand(line -> {
+			if (!line.isEmpty())
+				candidates.add(line.trim());
+		}, withRangeLimits("rev-list", "--topo-order", "refs/bisect/bad", "--not", "--glob=refs/bisect/good-*"));
+		
+		// The bad revision is already known to be bad, 
+		// it is only listed when it touches the pathspecs
+		String bad = runCommand("rev-parse", "refs/bisect/bad").stdout;
+		candidates.remove(bad);
+		candidates.removeAll(skippedRevisions());
+		return candidates;
+	}
+	
+	/**
+	 * Weighs the candidates of a single 'git rev-list --parents' listing, see {@link CommitGraph#weights}.
+	 */
+	@Override
+	public CandidateWeights candidateWeights() throws IOException, InterruptedException
+	{
+		List<String> lines = new ArrayList<>();
+		runCommand(line -> {
+			if (!line.isEmpty())
+				lines.add(line);
+		}, withRangeLimits("rev-list", "--topo-order", "--parents", "refs/bisect/bad", "--not", "--glob=refs/bisect/good-*"));
+		
+		return CommitGraph.fromRevList(lines).weights(skippedRevisions());
+	}
+	
+	private List<String> skippedRevisions() throws IOException, InterruptedException
+	{
+		List<String> skipped = new ArrayList<>();
+		runCommand(line -> {
+			if (!line.isEmpty())
+				skipped.add(line.trim());
+		}, "for-each-ref", "--format=%(objectname)", "refs/bisect/skip-*");
+		return skipped;
+	}
+	
+	@Override
+	public String nextProbeAssuming(String commit, CommitState state) throws IOException, InterruptedException
+	{
+		String bad;
+		String nextProbe;
+		if (state == CommitState.Good)
+		{
+			bad = runCommand("rev-parse", "refs/bisect/bad").stdout;
+			nextProbe = runCommand(withRangeLimits(
+					"rev-list", "--bisect", bad, "--not", "--glob=refs/bisect/good-*", commit)).stdout;
+		}
+		else
+		{
+			bad = runCommand("rev-parse", commit).stdout;
+			nextProbe = runCommand(withRangeLimits(
+					"rev-list", "--bisect", bad, "--not", "--glob=refs/bisect/good-*")).stdout;
+		}
+		
+		if (nextProbe.isEmpty() || nextProbe.equals(bad))
+			return null;
+		// 'git bisect' tests a revision away from the best one if that was skipped, chosen pseudo-randomly, so there is nothing to predict
+		if (skippedRevisions().contains(nextProbe))
+			return null;
+		return nextProbe;
+	}
+	
+	@Override
+	public BisectionResult restore(BisectState state) throws IOException, InterruptedException
+	{
+		if (state.isComplete())
+			return new BisectionResult(state.getFirstBadCommit(), true);
+		if (!state.hasBounds())
+			throw new RuntimeException("Can't restore a search that has no good and bad revisions");
+		
+		List<String> goods = independentRevisions(state.getGoods());
+		writeToLog("Restoring the search between " + goods + " and " + state.getBad());
+		
+		List<String> args = new ArrayList<>(Arrays.asList("bisect", "start", "--no-checkout", state.getBad()));
+		args.addAll(goods);
+		BisectionResult result = parseBisectOutput(runCommand(withRangeLimits(args.toArray(new String[0]))));
+		
+		if (!state.getSkipped().isEmpty())
+		{
+			List<String> skipArgs = new ArrayList<>(Arrays.asList("bisect", "skip"));
+			skipArgs.addAll(state.getSkipped());
+			result = parseBisectOutput(runBisectCommand(skipArgs.toArray(new String[0])));
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Drops revisions that are reachable from other revisions in the list, they don't narrow the range any further.
+	 */
+	private List<String> independentRevisions(Collection<String> revisions) throws IOException, InterruptedException
+	{
+		if (revisions.size() <= 1)
+			return new ArrayList<>(revisions);
+		
+		List<String> args = new ArrayList<>(Arrays.asList("merge-base", "--independent"));
+		args.addAll(revisions);
+		
+		List<String> independent = new ArrayList<>();
+		runCommand(line -> {
+			if (!line.isEmpty())
+				independent.add(line);
+		}, args.toArray(new String[0]));
+		return independent;
 	}
 
-	private String revisionFromLine(String completionLine) {
+	static String revisionFromLine(String completionLine) {
 		int revStart = completionLine.indexOf("[") + 1;
 		int revEnd = completionLine.indexOf("]");
 		return completionLine.substring(revStart, revEnd);
 	}
-
-	private String findCompletionToken(FilePath file) throws IOException, InterruptedException {
-		return findCompletionToken(file.readToString());
+	
+	/**
+	 * The line with the completion token, found without splitting the whole content into lines
+	 */
+	static String findCompletionToken(String content) {
+		int token = content.indexOf(COMPLETION_TOKEN);
+		if (token == -1)
+			return null;
+		
+		int lineStart = Math.max(content.lastIndexOf('\n', token), content.lastIndexOf('\r', token)) + 1;
+		int lineEnd = token;
+		while (lineEnd < content.length() && content.charAt(lineEnd) != '\n' && content.charAt(lineEnd) != '\r')
+			lineEnd++;
+		return content.substring(lineStart, lineEnd);
 	}
 	
-	private String findCompletionToken(String content) throws IOException, InterruptedException {
-		List<String> bisectLines = linesOf(content);
-		for (String line : bisectLines)
+	static String findCompletionToken(List<String> lines) {
+		for (String line : lines)
 		{
 			if (hasCompletionToken(line))
 				return line;
@@ -118,41 +324,270 @@ public class CommandsRunner {
 		return null;
 	}
 
-	private static List<String> linesOf(String s) {
+	static List<String> linesOf(String s) {
 		return Arrays.asList(s.split("\\R"));
 	}
 	
-	public boolean checkExistance(String commit) throws IOException, InterruptedException {
-		String[] checkCommandArgs = { "cat-file", "-e", commit + "^{commit}" };
-		CommandOutput result = runCommandImpl(checkCommandArgs);
-		boolean exists = result.exitStatus == 0;
-		if (!exists)
+	/**
+	 * Streams all the revisions through a single 'git cat-file --batch-check' process.
+	 */
+	@Override
+	public Map<String, String> resolveCommits(Collection<String> revisions) throws IOException, InterruptedException {
+		List<String> orderedRevisions = new ArrayList<>(new LinkedHashSet<>(revisions));
+		StringBuilder input = new StringBuilder();
+		for (String revision : orderedRevisions)
+			input.append(revision).append("^{commit}\n");
+		
+		// Every input line is answered with either '<sha> commit <size>' or '<input> missing'
+		List<String> answers = new ArrayList<>();
+		CommandOutput result = runCommandImpl(
+				new ByteArrayInputStream(input.toString().getBytes(enc)), answers::add,
+				"cat-file", "--batch-check");
+		if (result.exitStatus != 0)
+			throw new RuntimeException("Could not check the given revisions, 'git cat-file --batch-check' failed with - " + result.stderr);
+		
+		Map<String, String> resolved = new LinkedHashMap<>();
+		for (int i = 0; i < orderedRevisions.size(); i++)
+		{
+			String[] answer = i < answers.size() ? answers.get(i).split(" ") : new String[0];
+			boolean isCommit = answer.length == 3 && answer[1].equals("commit");
+			resolved.put(orderedRevisions.get(i), isCommit ? answer[0] : null);
+		}
+		return resolved;
+	}
+	
+	/**
+	 * Fetches the history of the range in a shallow clone, so a workspace doesn't need a full clone to be bisected.
+	 * The clone is fetched again twice as deep each time, until the good revision is an ancestor of the bad one
+	 * or the clone is no longer shallow. Partial clones fetch the objects they miss when git needs them.
+	 * 
+	 * The fetch goes through the git client plugin with the URL and credentials of the first remote of the job's Git SCM.
+	 * A job without one fetches from the default remote of the workspace with the credentials git finds on its own
+	 * (a credential helper or an SSH agent), if that fails the search fails with a message saying so.
+	 */
+	public void fetchHistoryOf(CommitPair range) throws IOException, InterruptedException
+	{
+		if (!runCommandImpl("config", "--get-regexp", "^(extensions\\.partialclone|remote\\..*\\.promisor)$").stdout.isEmpty())
+			writeToLog("The repository is a partial clone, missing objects will be fetched from its promisor remote");
+		
+		if (!isShallow() || isAncestor(range.goodCommit, range.badCommit))
+			return;
+		
+		UserRemoteConfig remote = gitRemoteOf(build);
+		CommandOutput currentDepth = runCommandImpl("rev-list", "--count", range.badCommit);
+		int depth = currentDepth.exitStatus == 0 ? 
+				Math.max(INITIAL_FETCH_DEPTH, 2 * Integer.parseInt(currentDepth.stdout)) : INITIAL_FETCH_DEPTH;
+		while (isShallow() && !isAncestor(range.goodCommit, range.badCommit))
+		{
+			boolean unshallow = depth > MAX_FETCH_DEPTH;
+			writeToLog("The shallow clone doesn't reach the good commit - " + range.goodCommit + ", fetching " + 
+					   (unshallow ? "the rest of the history" : depth + " commits deep"));
+			if (remote == null)
+				fetchFromDefaultRemote(unshallow ? "--unshallow" : "--depth=" + depth);
+			else
+				fetchFrom(remote, unshallow ? Integer.MAX_VALUE : depth);
+			
+			if (unshallow)
+				return;
+			depth *= 2;
+		}
+	}
+	
+	/**
+	 * @return the first remote of the first Git SCM of the build's job, or null if it has none
+	 */
+	private static UserRemoteConfig gitRemoteOf(Run<?,?> build)
+	{
+		SCMTriggerItem item = SCMTriggerItem.SCMTriggerItems.asSCMTriggerItem(build.getParent());
+		if (item == null)
+			return null;
+		
+		for (SCM scm : item.getSCMs())
+			if (scm instanceof GitSCM && !((GitSCM) scm).getUserRemoteConfigs().isEmpty())
+				return ((GitSCM) scm).getUserRemoteConfigs().get(0);
+		return null;
+	}
+	
+	private void fetchFrom(UserRemoteConfig remote, int depth) throws IOException, InterruptedException
+	{
+		EnvVars env = build.getEnvironment(listener);
+		String url = env.expand(remote.getUrl());
+		String name = remote.getName() == null || remote.getName().isEmpty() ? "origin" : env.expand(remote.getName());
+		String refspec = remote.getRefspec() == null || remote.getRefspec().trim().isEmpty() ? 
+				"+refs/heads/*:refs/remotes/" + name + "/*" : env.expand(remote.getRefspec());
+		
+		List<RefSpec> refspecs = new ArrayList<>();
+		for (String spec : refspec.trim().split("\\s+"))
+			refspecs.add(new RefSpec(spec));
+		
+		GitClient git = Git.with(listener, env).in(workspace).using(gitCommand).getClient();
+		if (remote.getCredentialsId() != null)
+		{
+			StandardUsernameCredentials credentials = CredentialsProvider.findCredentialById(remote.getCredentialsId(), 
+					StandardUsernameCredentials.class, build, URIRequirementBuilder.fromUri(url).build());
+			if (credentials == null)
+				writeToLog("The credentials '" + remote.getCredentialsId() + "' of " + url + " were not found, fetching without them");
+			else
+				git.addDefaultCredentials(CredentialsProvider.track(build, credentials));
+		}
+		
+		try {
+			git.fetch_().from(new URIish(url), refspecs).shallow(true).depth(depth).execute();
+		} catch (GitException | URISyntaxException e) {
+			throw new RuntimeException("Could not fetch the history of the range from " + url + " - " + e.getMessage(), e);
+		}
+	}
+	
+	private void fetchFromDefaultRemote(String depthOption) throws IOException, InterruptedException
+	{
+		try {
+			runCommand("fetch", depthOption);
+		} catch (RuntimeException e) {
+			throw new RuntimeException("Could not fetch the history of the range from the default remote, the job has no Git SCM " + 
+									   "whose credentials could be used. Clone the workspace deep enough to reach the good commit, " + 
+									   "or let git find credentials on its own (a credential helper or an SSH agent) - " + e.getMessage(), e);
+		}
+	}
+	
+	private boolean isShallow() throws IOException, InterruptedException
+	{
+		// Older versions of git echo the unknown option back, which reads as not shallow
+		return runCommandImpl("rev-parse", "--is-shallow-repository").stdout.equals("true");
+	}
+	
+	@Override
+	public boolean isAncestor(String ancestor, String descendant) throws IOException, InterruptedException {
+		return runCommandImpl("merge-base", "--is-ancestor", ancestor, descendant).exitStatus == 0;
+	}
+	
+	@Override
+	public int distanceBetween(String commit, String other) throws IOException, InterruptedException {
+		return Integer.parseInt(runCommand("rev-list", "--count", commit + "..." + other).stdout);
+	}
+	
+	@Override
+	public String treeOf(String commit) throws IOException, InterruptedException {
+		return runCommand("rev-parse", commit + "^{tree}").stdout;
+	}
+	
+	/**
+	 * Streams all the commits through a single 'git log --numstat' process.
+	 */
+	@Override
+	public Map<String, ChangeSize> changeSizes(Collection<String> commits) throws IOException, InterruptedException {
+		StringBuilder input = new StringBuilder();
+		for (String commit : commits)
+			input.append(commit).append("\n");
+		
+		NumstatParser parser = new NumstatParser();
+		CommandOutput result = runCommandImpl(
+				new ByteArrayInputStream(input.toString().getBytes(enc)), parser,
+				"log", "--no-walk=unsorted", "--first-parent", "--numstat", "--format=#%H", "--stdin");
+		if (result.exitStatus != 0)
+			throw new RuntimeException("Could not measure the commits, 'git log --numstat' failed with - " + result.stderr);
+		
+		// The trailing '#' closes the last commit
+		parser.accept("#");
+		return parser.sizes;
+	}
+	
+	/**
+	 * Every commit is a '#<sha>' line followed by '<added>\t<deleted>\t<path>' lines ('-' for binary files)
+	 */
+	static class NumstatParser implements Consumer<String>
+	{
+		final Map<String, ChangeSize> sizes = new HashMap<>();
+		String commit = null;
+		int touchedPaths = 0;
+		int changedLines = 0;
+		
+		@Override
+		public void accept(String line)
+		{
+			if (line.startsWith("#"))
+			{
+				if (commit != null)
+					sizes.put(commit, new ChangeSize(touchedPaths, changedLines));
+				commit = line.substring(1);
+				touchedPaths = 0;
+				changedLines = 0;
+			}
+			else if (!line.isEmpty())
+			{
+				String[] stat = line.split("\t");
+				touchedPaths += 1;
+				for (int i = 0; i < 2 && i < stat.length; i++)
+					if (!stat[i].equals("-"))
+						changedLines += Integer.parseInt(stat[i]);
+			}
+		}
+	}
+	
+	/**
+	 * Runs a command that marks revisions, git fails these when only skipped revisions are left 
+	 * but that is an expected end of the search.
+	 */
+	private CommandOutput runBisectCommand(String... cmds) throws IOException, InterruptedException
+	{
+		CommandOutput result = runCommandImpl(cmds);
+		if (result.exitStatus != 0 && !onlySkippedLeft(result.stdout))
+			writeResultToLog(result, cmds);
+		return result;
+	}
+	
+	private static boolean onlySkippedLeft(String bisectOutput)
+	{
+		return bisectOutput.contains("only 'skip'ped commits left");
+	}
+	
+	/**
+	 * The revisions listed between 'could be any of:' and 'We cannot bisect more!'
+	 */
+	private static List<String> suspectsOf(String bisectOutput)
+	{
+		List<String> suspects = new ArrayList<>();
+		boolean listing = false;
+		for (String line : linesOf(bisectOutput))
 		{
-			writeToLog("The commit - " + commit + " does not exist in the repository. (did you forget adding the remote name?)");
-			writeToLog(
-					"The command exited with exit code = " + 
-					result.exitStatus + " and stderror was "  + 
-					result.stderr);
+			if (line.contains("cannot bisect more"))
+				break;
+			if (listing && !line.trim().isEmpty())
+				suspects.add(line.trim());
+			if (line.contains("could be any of"))
+				listing = true;
 		}
-		return exists;
+		return suspects;
 	}
 	
 	private BisectionResult parseBisectOutput(CommandOutput bisectOutput) throws IOException, InterruptedException {
+		if (onlySkippedLeft(bisectOutput.stdout))
+		{
+			List<String> suspects = suspectsOf(bisectOutput.stdout);
+			writeToLog("Only skipped revisions are left, the first bad commit could be any of - " + suspects);
+			return new BisectionResult(String.join(" ", suspects), true);
+		}
+		
 		boolean isDone = hasCompletionToken(bisectOutput.stdout);
 		
 		String nextCommit;
 		
 		if (isDone)
-			nextCommit = findCompletionToken(bisectOutput.stdout);
+			nextCommit = firstWordOf(findCompletionToken(bisectOutput.stdout));
 		else
 			nextCommit = getNextCommit();
 		
 		return new BisectionResult(nextCommit, isDone);
 	}
 	
-	private boolean hasCompletionToken(String line)
+	// The completion line looks like '<revision> is the first bad commit'
+	private static String firstWordOf(String line)
 	{
-		return line.contains("first bad commit");
+		return line.trim().split("\\s+")[0];
+	}
+	
+	static boolean hasCompletionToken(String line)
+	{
+		return line.contains(COMPLETION_TOKEN);
 	}
 	
 	private String getNextCommit() throws IOException, InterruptedException
@@ -172,7 +607,15 @@ public class CommandsRunner {
 	
 	private CommandOutput runCommand(String... cmds) throws IOException, InterruptedException
 	{
-		CommandOutput result = runCommandImpl(cmds);
+		return runCommand(null, cmds);
+	}
+	
+	/**
+	 * @param stdoutLines receives the lines of stdout as they are written, they are not kept in the result
+	 */
+	private CommandOutput runCommand(Consumer<String> stdoutLines, String... cmds) throws IOException, InterruptedException
+	{
+		CommandOutput result = runCommandImpl(null, stdoutLines, cmds);
 		
 		if (result.exitStatus != 0)
 		{
@@ -185,30 +628,103 @@ public class CommandsRunner {
 	static String enc = Charset.defaultCharset().name();
 	private CommandOutput runCommandImpl(String... cmds) throws IOException, InterruptedException
 	{
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		ByteArrayOutputStream capturedErrors = new ByteArrayOutputStream();
+		return runCommandImpl(null, null, cmds);
+	}
+	
+	/**
+	 * Runs git, stdout is either captured or, when there is a consumer for its lines, streamed to it.
+	 * Output such as 'rev-list' or 'bisect log' of a big range is never held as a single String.
+	 */
+	private CommandOutput runCommandImpl(InputStream input, Consumer<String> stdoutLines, String... cmds) throws IOException, InterruptedException
+	{
+		ByteArrayOutputStream capturedOutput = new ByteArrayOutputStream();
+		LineStream streamedOutput = stdoutLines == null ? null : new LineStream(stdoutLines);
+		CappedOutputStream capturedErrors = new CappedOutputStream(MAX_CAPTURED_STDERR);
 		List<String> args = new ArrayList<>();
 		args.add(gitCommand);
 		args.addAll(Arrays.asList(cmds));
 		
+		long startMillis = System.currentTimeMillis();
 		int exitStatus = launcher.launch()
 		.cmds(args)
 		.envs(build.getEnvironment(listener))
 		.pwd(workspace)
-		.stdout(out)
+		.stdin(input)
+		.stdout(streamedOutput == null ? capturedOutput : streamedOutput)
 		.stderr(capturedErrors)
 		.join();
 		
+		if (metrics != null)
+			metrics.recordGitCommand(System.currentTimeMillis() - startMillis);
+		
+		// Hands over a last line that has no line break
+		if (streamedOutput != null)
+			streamedOutput.close();
 		
 		return new CommandOutput(
-				out.toString(enc).trim(), 
-				capturedErrors.toString(enc).trim(), 
+				capturedOutput.toString(enc).trim(), 
+				capturedErrors.contents(), 
 				exitStatus);
 	}
 	
+	private static class LineStream extends LineTransformationOutputStream
+	{
+		private final Consumer<String> lines;
+		
+		LineStream(Consumer<String> lines)
+		{
+			this.lines = lines;
+		}
+		
+		@Override
+		protected void eol(byte[] b, int len) throws IOException
+		{
+			lines.accept(trimEOL(new String(b, 0, len, enc)));
+		}
+	}
+	
+	/**
+	 * Keeps the first bytes written to it and counts the rest
+	 */
+	private static class CappedOutputStream extends ByteArrayOutputStream
+	{
+		private final int cap;
+		private long dropped = 0;
+		
+		CappedOutputStream(int cap)
+		{
+			this.cap = cap;
+		}
+		
+		@Override
+		public synchronized void write(int b)
+		{
+			if (count < cap)
+				super.write(b);
+			else
+				dropped++;
+		}
+		
+		@Override
+		public synchronized void write(byte[] b, int off, int len)
+		{
+			int kept = Math.min(len, cap - count);
+			super.write(b, off, kept);
+			dropped += len - kept;
+		}
+		
+		String contents() throws IOException
+		{
+			String contents = toString(enc).trim();
+			if (dropped > 0)
+				contents += "\n... (" + dropped + " more bytes were not kept)";
+			return contents;
+		}
+	}
+	
 	private void writeToLog(String line)
 	{
-		Logger.log("[GIT-BISECT]: " + line);
+		logger.log(line);
 	}
 	
 	private void writeResultToLog(CommandOutput result, String... cmds) {
@@ -0,0 +1,557 @@
+package git.bisect.builder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.DiffFormatter;
+import org.eclipse.jgit.diff.Edit;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.eclipse.jgit.util.io.DisabledOutputStream;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * The commits between the good and the bad revisions of a search,
+ * loaded once and kept in memory so bisection steps don't need to touch the repository.
+ * Commits are ordered topologically, children before their parents (newest first).
+ */
+public class CommitGraph implements Serializable {
+	private static final long serialVersionUID = 1L;
+	// The sets of reached candidates kept at once while weighing, in 64 bit words (32 MB)
+	private static final long MAX_REACH_WORDS = 4L * 1024 * 1024;
+
+	private final ArrayList<String> commits;
+	private final ArrayList<String> subjects;
+	private final int[][] parents;
+	private transient HashMap<String, Integer> indices;
+
+	CommitGraph(ArrayList<String> commits, ArrayList<String> subjects, int[][] parents) {
+		this.commits = commits;
+		this.subjects = subjects;
+		this.parents = parents;
+	}
+
+	public int size() {
+		return commits.size();
+	}
+
+	/**
+	 * @return the newest loaded commit, or null if no commit was loaded
+	 */
+	public String head() {
+		return commits.isEmpty() ? null : commits.get(0);
+	}
+
+	public boolean contains(String commit) {
+		return indices().containsKey(commit);
+	}
+
+	/**
+	 * The number of commits between two loaded commits in topological order, an estimate of how far apart they are
+	 * @return {@link Integer#MAX_VALUE} if one of them is not loaded
+	 */
+	public int distance(String commit, String other) {
+		Integer index = indices().get(commit);
+		Integer otherIndex = indices().get(other);
+		if (index == null || otherIndex == null)
+			return Integer.MAX_VALUE;
+		return Math.abs(index - otherIndex);
+	}
+
+	public String subjectOf(String commit) {
+		Integer index = indices().get(commit);
+		return index == null ? "" : subjects.get(index);
+	}
+
+	/**
+	 * Lists the revisions that may still be the first bad commit, newest first, including <code>bad</code> itself.
+	 */
+	public List<String> candidates(String bad, Collection<String> goods) {
+		boolean[] mask = candidatesMask(bad, goods);
+		List<String> candidates = new ArrayList<>();
+		for (int i = 0; i < mask.length; i++)
+			if (mask[i])
+				candidates.add(commits.get(i));
+		return candidates;
+	}
+
+	/**
+	 * Weighs the revisions that may still be the first bad commit, see {@link CandidateWeights}.
+	 */
+	public CandidateWeights weights(String bad, Collection<String> goods, Collection<String> skipped) {
+		return weights(candidatesMask(bad, goods), skipped);
+	}
+
+	/**
+	 * Weighs all the loaded commits as candidates, for graphs that were loaded with the current bounds of a search
+	 */
+	public CandidateWeights weights(Collection<String> skipped) {
+		boolean[] mask = new boolean[size()];
+		Arrays.fill(mask, true);
+		return weights(mask, skipped);
+	}
+
+	private CandidateWeights weights(boolean[] mask, Collection<String> skipped) {
+		int[] weights = weights(mask);
+		LinkedHashMap<String, Integer> candidateWeights = new LinkedHashMap<>();
+		for (int i = 0; i < mask.length; i++)
+			if (mask[i])
+				candidateWeights.put(commits.get(i), weights[i]);
+		return new CandidateWeights(candidateWeights, new HashSet<>(skipped));
+	}
+
+	/**
+	 * Picks the revision that splits the candidates as evenly as possible, the same way git bisect does.
+	 * A revision's weight is the number of candidates it can reach (itself included),
+	 * the best revision is the one where the weight is the closest to half the candidates.
+	 * Skipped revisions still count as candidates but are never picked.
+	 * @return the revision to test next, or null if <code>bad</code> and skipped revisions are the only candidates left
+	 */
+	public String midpoint(String bad, Collection<String> goods, Collection<String> skipped) {
+		boolean[] mask = candidatesMask(bad, goods);
+		int candidatesCount = count(mask);
+		if (candidatesCount <= 1)
+			return null;
+
+		int[] weights = weights(mask);
+		int best = -1;
+		int bestScore = -1;
+		for (int i = mask.length - 1; i >= 0; i--)
+		{
+			if (!mask[i])
+				continue;
+
+			int score = Math.min(weights[i], candidatesCount - weights[i]);
+			if (score > bestScore && !skipped.contains(commits.get(i)))
+			{
+				bestScore = score;
+				best = i;
+			}
+		}
+
+		return best == -1 ? null : commits.get(best);
+	}
+
+	/**
+	 * Weighs every candidate in a single pass, parents first (they always come after their children).
+	 * Merges may reach the same commit through both sides, so each candidate's set of reached candidates is built
+	 * from the sets of its parents. A set is handed down to the last child that needs it instead of being copied,
+	 * so linear history keeps a single set. If the sets kept at once grow too large,
+	 * the remaining merges are weighed by walking their history instead.
+	 */
+	private int[] weights(boolean[] mask) {
+		int[] weights = new int[mask.length];
+		int[] waitingChildren = new int[mask.length];
+		for (int i = 0; i < mask.length; i++)
+			if (mask[i])
+				for (int parent : parents[i])
+					if (mask[parent])
+						waitingChildren[parent] += 1;
+
+		BitSet[] reached = new BitSet[mask.length];
+		long wordsPerSet = mask.length / 64 + 1;
+		long keptSets = 0;
+		boolean memoised = true;
+		for (int i = mask.length - 1; i >= 0; i--)
+		{
+			if (!mask[i])
+				continue;
+
+			if (!memoised)
+			{
+				weights[i] = weightOf(i, mask, weights);
+				continue;
+			}
+
+			BitSet reach = null;
+			int candidateParent = -1;
+			int candidateParents = 0;
+			for (int parent : parents[i])
+			{
+				if (!mask[parent])
+					continue;
+
+				candidateParent = parent;
+				candidateParents += 1;
+				BitSet parentReach = reached[parent];
+				waitingChildren[parent] -= 1;
+				if (waitingChildren[parent] == 0)
+				{
+					reached[parent] = null;
+					keptSets -= 1;
+				}
+
+				if (reach == null)
+					reach = reached[parent] == null ? parentReach : (BitSet) parentReach.clone();
+				else
+					reach.or(parentReach);
+			}
+
+			if (reach == null)
+				reach = new BitSet(mask.length);
+			reach.set(i);
+			if (candidateParents == 0)
+				weights[i] = 1;
+			else if (candidateParents == 1)
+				weights[i] = weights[candidateParent] + 1;
+			else
+				weights[i] = reach.cardinality();
+
+			if (waitingChildren[i] > 0)
+			{
+				reached[i] = reach;
+				keptSets += 1;
+				if (keptSets * wordsPerSet > MAX_REACH_WORDS)
+				{
+					memoised = false;
+					reached = null;
+				}
+			}
+		}
+		return weights;
+	}
+
+	private int weightOf(int commit, boolean[] mask, int[] weights) {
+		int candidateParent = -1;
+		int candidateParents = 0;
+		for (int parent : parents[commit])
+		{
+			if (mask[parent])
+			{
+				candidateParent = parent;
+				candidateParents += 1;
+			}
+		}
+
+		if (candidateParents == 0)
+			return 1;
+		if (candidateParents == 1)
+			return weights[candidateParent] + 1;
+
+		// Merges may reach the same commit through both sides, so they are counted explicitly
+		boolean[] reached = new boolean[mask.length];
+		reach(commit, mask, reached);
+		return count(reached);
+	}
+
+	private boolean[] candidatesMask(String bad, Collection<String> goods) {
+		Integer badIndex = indices().get(bad);
+		if (badIndex == null)
+			throw new IllegalStateException("The bad revision " + bad + " is not part of the loaded commit graph");
+
+		boolean[] excluded = new boolean[size()];
+		for (String good : goods)
+		{
+			Integer goodIndex = indices().get(good);
+			if (goodIndex != null)
+				reach(goodIndex, null, excluded);
+		}
+
+		boolean[] candidates = new boolean[size()];
+		if (excluded[badIndex])
+			return candidates;
+
+		for (int i = 0; i < excluded.length; i++)
+			excluded[i] = !excluded[i];
+		reach(badIndex, excluded, candidates);
+		return candidates;
+	}
+
+	/**
+	 * Marks every commit reachable from <code>start</code> (itself included) in <code>reached</code>,
+	 * only walking through commits allowed by <code>mask</code> (or all commits if it is null).
+	 */
+	private void reach(int start, boolean[] mask, boolean[] reached) {
+		Deque<Integer> toVisit = new ArrayDeque<>();
+		toVisit.push(start);
+		reached[start] = true;
+		while (!toVisit.isEmpty())
+		{
+			for (int parent : parents[toVisit.pop()])
+			{
+				if (!reached[parent] && (mask == null || mask[parent]))
+				{
+					reached[parent] = true;
+					toVisit.push(parent);
+				}
+			}
+		}
+	}
+
+	private static int count(boolean[] flags) {
+		int count = 0;
+		for (boolean flag : flags)
+			if (flag)
+				count += 1;
+		return count;
+	}
+
+	/**
+	 * Builds the graph of the output of 'git rev-list --topo-order --parents', parents that were not listed are dropped.
+	 */
+	static CommitGraph fromRevList(List<String> lines) {
+		ArrayList<String> commits = new ArrayList<>();
+		ArrayList<String> subjects = new ArrayList<>();
+		HashMap<String, Integer> indices = new HashMap<>();
+		for (String line : lines)
+		{
+			String commit = line.trim().split("\\s+")[0];
+			indices.put(commit, commits.size());
+			commits.add(commit);
+			subjects.add("");
+		}
+
+		int[][] parents = new int[commits.size()][];
+		for (int i = 0; i < lines.size(); i++)
+		{
+			String[] words = lines.get(i).trim().split("\\s+");
+			parents[i] = Arrays.stream(words, 1, words.length)
+					.filter(indices::containsKey)
+					.mapToInt(indices::get)
+					.toArray();
+		}
+		return new CommitGraph(commits, subjects, parents);
+	}
+
+	private HashMap<String, Integer> indices() {
+		if (indices == null)
+		{
+			indices = new HashMap<>();
+			for (int i = 0; i < commits.size(); i++)
+				indices.put(commits.get(i), i);
+		}
+		return indices;
+	}
+
+	/**
+	 * Loads the commits reachable from the bad revision but not from any of the good revisions.
+	 * When paths are given only commits that touch them are loaded, 
+	 * and the parents of each commit are rewritten to its closest loaded ancestors.
+	 * Runs wherever the workspace is, only the resulting graph is sent back.
+	 */
+	static class Loader extends MasterToSlaveFileCallable<CommitGraph> {
+		private static final long serialVersionUID = 1L;
+
+		private final String bad;
+		private final Collection<String> goods;
+		private final Collection<String> paths;
+		private final boolean firstParent;
+
+		Loader(String bad, Collection<String> goods) {
+			this(bad, goods, new ArrayList<>(), false);
+		}
+
+		Loader(String bad, Collection<String> goods, Collection<String> paths, boolean firstParent) {
+			this.bad = bad;
+			this.goods = new ArrayList<>(goods);
+			this.paths = new ArrayList<>(paths);
+			this.firstParent = firstParent;
+		}
+
+		@Override
+		public CommitGraph invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+			try (Repository repository = openRepository(workspace);
+				 RevWalk walk = new RevWalk(repository))
+			{
+				walk.sort(RevSort.TOPO);
+				walk.setFirstParent(firstParent);
+				if (!paths.isEmpty())
+					walk.setTreeFilter(AndTreeFilter.create(PathFilterGroup.createFromStrings(paths), TreeFilter.ANY_DIFF));
+				walk.markStart(walk.parseCommit(repository.resolve(bad)));
+				for (String good : goods)
+					walk.markUninteresting(walk.parseCommit(repository.resolve(good)));
+
+				ArrayList<String> commits = new ArrayList<>();
+				ArrayList<String> subjects = new ArrayList<>();
+				List<RevCommit> revCommits = new ArrayList<>();
+				HashMap<ObjectId, Integer> indices = new HashMap<>();
+				for (RevCommit commit : walk)
+				{
+					indices.put(commit.copy(), commits.size());
+					commits.add(commit.name());
+					subjects.add(commit.getShortMessage());
+					revCommits.add(commit);
+				}
+
+				int[][] parents = new int[commits.size()][];
+				for (int i = 0; i < revCommits.size(); i++)
+				{
+					List<Integer> loadedParents = new ArrayList<>();
+					RevCommit[] walkedParents = revCommits.get(i).getParents();
+					if (firstParent && walkedParents.length > 1)
+						walkedParents = new RevCommit[] { walkedParents[0] };
+					for (RevCommit parent : walkedParents)
+					{
+						Integer parentIndex = indices.get(parent);
+						if (parentIndex != null)
+							loadedParents.add(parentIndex);
+					}
+					parents[i] = loadedParents.stream().mapToInt(Integer::intValue).toArray();
+				}
+
+				return new CommitGraph(commits, subjects, parents);
+			}
+		}
+	}
+
+	/**
+	 * Resolves revisions to full commit ids, revisions that don't name a commit resolve to null.
+	 * Revisions can be resolved to other object types (like their tree) by giving a different peel suffix.
+	 */
+	static class Resolver extends MasterToSlaveFileCallable<HashMap<String, String>> {
+		private static final long serialVersionUID = 1L;
+
+		private final Collection<String> revisions;
+		private final String peel;
+
+		Resolver(Collection<String> revisions) {
+			this(revisions, "^{commit}");
+		}
+
+		Resolver(Collection<String> revisions, String peel) {
+			this.revisions = new ArrayList<>(revisions);
+			this.peel = peel;
+		}
+
+		@Override
+		public HashMap<String, String> invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+			HashMap<String, String> resolved = new HashMap<>();
+			try (Repository repository = openRepository(workspace))
+			{
+				for (String revision : revisions)
+				{
+					ObjectId id = repository.resolve(revision + peel);
+					resolved.put(revision, id == null ? null : id.name());
+				}
+			}
+			return resolved;
+		}
+	}
+
+	/**
+	 * Counts the paths and lines each commit changed compared to its first parent.
+	 */
+	static class ChangeCounter extends MasterToSlaveFileCallable<HashMap<String, ChangeSize>> {
+		private static final long serialVersionUID = 1L;
+
+		private final Collection<String> commits;
+
+		ChangeCounter(Collection<String> commits) {
+			this.commits = new ArrayList<>(commits);
+		}
+
+		@Override
+		public HashMap<String, ChangeSize> invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+			HashMap<String, ChangeSize> sizes = new HashMap<>();
+			try (Repository repository = openRepository(workspace);
+				 RevWalk walk = new RevWalk(repository);
+				 DiffFormatter diff = new DiffFormatter(DisabledOutputStream.INSTANCE))
+			{
+				diff.setRepository(repository);
+				diff.setDetectRenames(false);
+				for (String commit : commits)
+				{
+					RevCommit revCommit = walk.parseCommit(repository.resolve(commit));
+					if (revCommit.getParentCount() == 0)
+						continue;
+
+					RevCommit parent = walk.parseCommit(revCommit.getParent(0));
+					List<DiffEntry> entries = diff.scan(parent.getTree(), revCommit.getTree());
+					int changedLines = 0;
+					for (DiffEntry entry : entries)
+						for (Edit edit : diff.toFileHeader(entry).toEditList())
+							changedLines += edit.getLengthA() + edit.getLengthB();
+					sizes.put(commit, new ChangeSize(entries.size(), changedLines));
+				}
+			}
+			return sizes;
+		}
+	}
+
+	static class AncestryCheck extends MasterToSlaveFileCallable<Boolean> {
+		private static final long serialVersionUID = 1L;
+
+		private final String ancestor;
+		private final String descendant;
+
+		AncestryCheck(String ancestor, String descendant) {
+			this.ancestor = ancestor;
+			this.descendant = descendant;
+		}
+
+		@Override
+		public Boolean invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+			try (Repository repository = openRepository(workspace);
+				 RevWalk walk = new RevWalk(repository))
+			{
+				return walk.isMergedInto(
+						walk.parseCommit(repository.resolve(ancestor)), 
+						walk.parseCommit(repository.resolve(descendant)));
+			}
+		}
+	}
+
+	/**
+	 * Counts the commits reachable from exactly one of the two revisions, like 'git rev-list --count a...b'
+	 */
+	static class DistanceCount extends MasterToSlaveFileCallable<Integer> {
+		private static final long serialVersionUID = 1L;
+
+		private final String commit;
+		private final String other;
+
+		DistanceCount(String commit, String other) {
+			this.commit = commit;
+			this.other = other;
+		}
+
+		@Override
+		public Integer invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+			try (Repository repository = openRepository(workspace);
+				 RevWalk walk = new RevWalk(repository))
+			{
+				ObjectId commitId = repository.resolve(commit);
+				ObjectId otherId = repository.resolve(other);
+				return countOnlyIn(walk, commitId, otherId) + countOnlyIn(walk, otherId, commitId);
+			}
+		}
+
+		private static int countOnlyIn(RevWalk walk, ObjectId start, ObjectId excluded) throws IOException {
+			walk.reset();
+			walk.markStart(walk.parseCommit(start));
+			walk.markUninteresting(walk.parseCommit(excluded));
+			int count = 0;
+			while (walk.next() != null)
+				count++;
+			return count;
+		}
+	}
+
+	static Repository openRepository(File workspace) throws IOException {
+		return new FileRepositoryBuilder()
+				.findGitDir(workspace)
+				.setMustExist(true)
+				.build();
+	}
+}
@@ -1,53 +1,316 @@
 package git.bisect.builder;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 
 import git.bisect.Logger;
 import git.bisect.ParametersToEnvVarsAction;
 import hudson.EnvVars;
+import hudson.model.Action;
+import hudson.model.Computer;
+import hudson.model.InvisibleAction;
 import hudson.model.Job;
 import hudson.model.ParameterDefinition;
 import hudson.model.ParameterValue;
 import hudson.model.ParametersAction;
 import hudson.model.ParametersDefinitionProperty;
+import hudson.model.Queue;
 import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.StringParameterValue;
 import hudson.model.queue.QueueTaskFuture;
+import hudson.plugins.git.util.BuildData;
 import jenkins.model.Jenkins;
 import jenkins.model.ParameterizedJobMixIn;
 
 public class CommitTester {
-	@SuppressWarnings("rawtypes")
-	private final class JobWrapper extends ParameterizedJobMixIn {
+	private static final class SeparateBuildAction extends InvisibleAction implements Queue.QueueAction {
 		@Override
-		protected Job<?, ?> asJob() {
-			return downstreamProj;
+		public boolean shouldSchedule(List<Action> actions) {
+			return true;
 		}
 	}
-
+	
 	private Run<?, ?> build;
 	private Job<?, ?> downstreamProj;
+	private long totalBuildMillis = 0;
+	private int completedBuilds = 0;
+	private BisectMetrics metrics;
+	private Logger logger;
+	private NodeAffinity nodeAffinity;
+	private final HashMap<QueueTaskFuture<? extends Run<?, ?>>, Long> scheduledAt = new HashMap<>();
+	private final HashMap<QueueTaskFuture<? extends Run<?, ?>>, Queue.Item> queueItems = new HashMap<>();
 
-	public CommitTester(Run<?, ?> build, Job<?, ?> downstreamProj) {
+	public CommitTester(Run<?, ?> build, Job<?, ?> downstreamProj, Logger logger) {
 		this.build = build;
 		this.downstreamProj = downstreamProj;
+		this.logger = logger;
+	}
+
+	/**
+	 * Counts the downstream builds, and how long they waited in the queue and ran
+	 */
+	public void setMetrics(BisectMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public void setLogger(Logger logger) {
+		this.logger = logger;
+	}
+
+	/**
+	 * Prefers the nodes that built nearby revisions for the following downstream builds
+	 */
+	public void setNodeAffinity(NodeAffinity nodeAffinity) {
+		this.nodeAffinity = nodeAffinity;
 	}
 
 	public boolean test(HashMap<String, String> bisectParameters) throws InterruptedException {
-		QueueTaskFuture<? extends Run<?, ?>> buildResult = runDownStreamProject(bisectParameters);
+		return waitFor(runDownStreamProject(bisectParameters));
+	}
+	
+	/**
+	 * Schedules a downstream build for every entry at once and only then waits for them.
+	 * Keys are the revisions under test, values are the parameters for their builds.
+	 * Revisions whose build crashed or was aborted get a null result.
+	 */
+	public HashMap<String, Boolean> testAll(Map<String, HashMap<String, String>> bisectParametersByRevision) throws InterruptedException {
+		warnIfNotConcurrent(bisectParametersByRevision.size());
+		
+		HashMap<String, QueueTaskFuture<? extends Run<?, ?>>> scheduledBuilds = new HashMap<>();
+		for (Entry<String, HashMap<String, String>> revision : bisectParametersByRevision.entrySet())
+			scheduledBuilds.put(revision.getKey(), runDownStreamProject(revision.getValue()));
+		
+		HashMap<String, Boolean> results = new HashMap<>();
+		for (Entry<String, QueueTaskFuture<? extends Run<?, ?>>> scheduledBuild : scheduledBuilds.entrySet())
+		{
+			logger.log("Waiting for downstream build of revision - " + scheduledBuild.getKey());
+			try {
+				results.put(scheduledBuild.getKey(), waitFor(scheduledBuild.getValue()));
+			} catch (DownstreamProjectCrashed e) {
+				results.put(scheduledBuild.getKey(), null);
+			}
+		}
+		
+		return results;
+	}
+	
+	/**
+	 * Schedules a build that is never merged into an identical queued build, 
+	 * used when the same revision has to run several times at once.
+	 */
+	public QueueTaskFuture<? extends Run<?, ?>> schedule(HashMap<String, String> bisectParameters) {
+		return schedule(bisectParameters, new Action[0]);
+	}
+	
+	/**
+	 * Like {@link #schedule(HashMap)}, the given actions are attached to the downstream build.
+	 */
+	public QueueTaskFuture<? extends Run<?, ?>> schedule(HashMap<String, String> bisectParameters, Action... actions) {
+		List<Action> extraActions = new ArrayList<>(Arrays.asList(actions));
+		extraActions.add(new SeparateBuildAction());
+		return runDownStreamProject(bisectParameters, extraActions.toArray(new Action[0]));
+	}
+	
+	/**
+	 * Blocks until at least one of the given builds is completed and returns it.
+	 * Each build is waited for on a pooled thread, the first one to complete wakes the caller.
+	 */
+	public QueueTaskFuture<? extends Run<?, ?>> waitForAny(List<QueueTaskFuture<? extends Run<?, ?>>> builds) throws InterruptedException {
+		CompletableFuture<QueueTaskFuture<? extends Run<?, ?>>> first = new CompletableFuture<>();
+		for (QueueTaskFuture<? extends Run<?, ?>> build : builds)
+		{
+			Computer.threadPoolForRemoting.submit(() -> {
+				try {
+					build.get();
+				} catch (InterruptedException e) {
+					return;
+				} catch (ExecutionException | CancellationException e) {
+					// Completed all the same, waitFor tells how
+				}
+				first.complete(build);
+			});
+		}
+		
+		try {
+			return first.get();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Cancels builds that are no longer needed, 
+	 * queued builds are removed from the queue and running builds are aborted.
+	 * Only the queue item each build was scheduled as is cancelled, other queued builds of the downstream project stay.
+	 */
+	public void cancel(List<QueueTaskFuture<? extends Run<?, ?>>> builds) {
+		Queue queue = Jenkins.get().getQueue();
+		for (QueueTaskFuture<? extends Run<?, ?>> build : builds)
+		{
+			scheduledAt.remove(build);
+			Queue.Item item = queueItems.remove(build);
+			if (build.isDone())
+				continue;
+			
+			if (item != null && queue.cancel(item))
+				continue;
+			// Cancelling a build that has not started cancels the first queued build of the project, which may be another one
+			if (build.getStartCondition().isDone())
+				build.cancel(true);
+		}
+		
+		if (!builds.isEmpty())
+			logger.log("Cancelled " + builds.size() + " downstream builds that are no longer needed");
+	}
+	
+	public boolean waitFor(QueueTaskFuture<? extends Run<?, ?>> buildResult) throws InterruptedException {
 		try {
 			return getDownStreamResult(buildResult);
 		} catch (ExecutionException e) {
-			e.printStackTrace();
-			Logger.error(
+			logger.printStackTrace(e);
+			logger.error(
 					"Downstream project threw an exception you may want to skip it this revision");
 			throw new DownstreamProjectCrashed();
+		} catch (CancellationException e) {
+			logger.log("Downstream build was cancelled before it started");
+			throw new DownstreamProjectCrashed();
+		} finally {
+			queueItems.remove(buildResult);
+		}
+	}
+	
+	private void warnIfNotConcurrent(int buildsCount) {
+		if (buildsCount > 1 && 
+			downstreamProj instanceof Queue.Task && 
+			!((Queue.Task)downstreamProj).isConcurrentBuild())
+			logger.log("Warning - '" + downstreamProj.getFullName() + "' does not allow concurrent builds, " + 
+					   "the " + buildsCount + " scheduled builds will run one after the other");
+	}
+	
+	/**
+	 * Collects the results of the latest completed builds of the downstream project by the revision they built.
+	 * The revision is taken from the git plugin's build data, or from the revision parameter if there is none.
+	 * Aborted builds and builds with an unknown revision are left out.
+	 */
+	public HashMap<String, List<Boolean>> recentResults(String revisionParameterName, int depth) {
+		HashMap<String, List<Boolean>> results = new HashMap<>();
+		int harvested = 0;
+		for (Run<?, ?> run : downstreamProj.getBuilds().completedOnly().limit(depth))
+		{
+			Result result = run.getResult();
+			String revision = revisionOf(run, revisionParameterName);
+			if (result == null || aborted(result) || result.equals(Result.NOT_BUILT) || revision == null)
+				continue;
+			
+			results.computeIfAbsent(revision, key -> new ArrayList<>()).add(successfull(result));
+			harvested += 1;
+		}
+		
+		logger.log("Found " + harvested + " usable builds of '" + downstreamProj.getFullName() + "' " + 
+				   "for " + results.size() + " revisions");
+		return results;
+	}
+	
+	/**
+	 * The duration of the latest completed build of each revision, out of the latest builds of the downstream project.
+	 */
+	public HashMap<String, Long> recentDurations(String revisionParameterName, int depth) {
+		HashMap<String, Long> durations = new HashMap<>();
+		for (Run<?, ?> run : downstreamProj.getBuilds().completedOnly().limit(depth))
+		{
+			String revision = revisionOf(run, revisionParameterName);
+			if (revision != null && !durations.containsKey(revision))
+				durations.put(revision, run.getDuration());
 		}
+		return durations;
+	}
+	
+	public long getEstimatedDuration() {
+		return downstreamProj.getEstimatedDuration();
+	}
+	
+	/**
+	 * The time all the downstream builds this tester waited for took, added together.
+	 */
+	public long getTotalBuildMillis() {
+		return totalBuildMillis;
+	}
+	
+	public int getCompletedBuilds() {
+		return completedBuilds;
+	}
+	
+	static String revisionOf(Run<?, ?> run, String revisionParameterName) {
+		BuildData buildData = run.getAction(BuildData.class);
+		if (buildData != null && buildData.getLastBuiltRevision() != null)
+			return buildData.getLastBuiltRevision().getSha1String();
+		
+		ParametersAction parameters = run.getAction(ParametersAction.class);
+		ParameterValue revision = parameters == null ? null : parameters.getParameter(revisionParameterName);
+		// A build that didn't set the parameter has its empty default
+		if (revision == null || revision.getValue() == null || revision.getValue().toString().isEmpty())
+			return null;
+		return revision.getValue().toString();
+	}
+	
+	/**
+	 * The parameters a downstream build of these bisect parameters gets, by name.
+	 */
+	public TreeMap<String, String> effectiveParameters(HashMap<String, String> bisectParameters) {
+		TreeMap<String, String> parameters = new TreeMap<>();
+		for (ParameterValue parameter : bubbleDownParameters(bisectParameters))
+			parameters.put(parameter.getName(), String.valueOf(parameter.getValue()));
+		return parameters;
+	}
+	
+	/**
+	 * Finds the queued builds of the downstream project that have <code>identifier</code> as the value of
+	 * <code>identifierParameterName</code>.
+	 * @return the revision of each queued build, by queue item id
+	 */
+	public HashMap<Long, String> queuedRevisions(String identifierParameterName, String identifier, String revisionParameterName) {
+		HashMap<Long, String> revisions = new HashMap<>();
+		if (!(downstreamProj instanceof Queue.Task))
+			return revisions;
+		
+		for (Queue.Item item : Jenkins.get().getQueue().getItems((Queue.Task) downstreamProj))
+		{
+			ParametersAction parameters = item.getAction(ParametersAction.class);
+			if (parameters == null)
+				continue;
+			
+			ParameterValue itemIdentifier = parameters.getParameter(identifierParameterName);
+			ParameterValue revision = parameters.getParameter(revisionParameterName);
+			if (itemIdentifier != null && identifier.equals(itemIdentifier.getValue()) && revision != null)
+				revisions.put(item.getId(), String.valueOf(revision.getValue()));
+		}
+		return revisions;
+	}
+	
+	/**
+	 * Removes builds from the queue, builds that already left it are not affected.
+	 */
+	public void cancelQueued(List<Long> itemIds) {
+		Queue queue = Jenkins.get().getQueue();
+		for (Long itemId : itemIds)
+		{
+			Queue.Item item = queue.getItem(itemId);
+			if (item != null)
+				queue.cancel(item);
+		}
+	}
+	
+	public String getDownstreamName() {
+		return downstreamProj.getFullName();
 	}
 	
 	public void runRecursivly(HashMap<String, String> bisectParameters) {
@@ -55,16 +318,27 @@ public class CommitTester {
 	}
 	
 	private QueueTaskFuture<? extends Run<?, ?>> runDownStreamProject(
-								HashMap<String, String> bisectParameters) 
+								HashMap<String, String> bisectParameters,
+								Action... extraActions) 
 	{
+		List<Action> actions = new ArrayList<>();
+		if (nodeAffinity != null)
+			bisectParameters = nodeAffinity.prefer(bisectParameters, actions);
+		
 		ArrayList<ParameterValue> combinedParameters = bubbleDownParameters(bisectParameters);
+		actions.add(new ParametersToEnvVarsAction(bisectParameters));
+		actions.add(new ParametersAction(combinedParameters));
+		actions.addAll(Arrays.asList(extraActions));
 
+		Queue.Item item = ParameterizedJobMixIn.scheduleBuild2(downstreamProj, -1, actions.toArray(new Action[0]));
+		if (item == null)
+			return null;
+		
 		@SuppressWarnings("unchecked")
-		QueueTaskFuture<? extends Run<?, ?>> buildResult =
-				new JobWrapper().scheduleBuild2(
-								-1, 
-								new ParametersToEnvVarsAction(bisectParameters),
-								new ParametersAction(combinedParameters));
+		QueueTaskFuture<? extends Run<?, ?>> buildResult = (QueueTaskFuture<? extends Run<?, ?>>) (QueueTaskFuture<?>) item.getFuture();
+		queueItems.put(buildResult, item);
+		if (metrics != null)
+			scheduledAt.put(buildResult, System.currentTimeMillis());
 								
 		return buildResult;
 	}
@@ -72,19 +346,44 @@ public class CommitTester {
 	private boolean getDownStreamResult(QueueTaskFuture<? extends Run<?, ?>> buildResult)
 			throws InterruptedException, ExecutionException 
 	{
-		Result downstreamResult = buildResult.get().getResult();
+		Run<?, ?> downstreamBuild = buildResult.get();
+		Long scheduledAtMillis = scheduledAt.remove(buildResult);
+		return completed(downstreamBuild, scheduledAtMillis == null ? 0 : scheduledAtMillis);
+	}
+	
+	/**
+	 * Counts a completed downstream build and classifies its result, see {@link #wasSuccessful(Result)}.
+	 * @param scheduledAtMillis when the build was scheduled, or 0 if it is not known
+	 */
+	public boolean completed(Run<?, ?> downstreamBuild, long scheduledAtMillis) {
+		totalBuildMillis += downstreamBuild.getDuration();
+		completedBuilds += 1;
+		if (nodeAffinity != null)
+			nodeAffinity.recordBuild(downstreamBuild);
+		if (metrics != null && scheduledAtMillis > 0)
+			metrics.recordDownstreamBuild(Math.max(0, downstreamBuild.getStartTimeInMillis() - scheduledAtMillis), 
+										  downstreamBuild.getDuration());
+		
+		return wasSuccessful(downstreamBuild.getResult());
+	}
+	
+	/**
+	 * Classifies the result of a completed downstream build.
+	 * Builds that were aborted or failed in an unknown manner throw {@link DownstreamProjectCrashed}.
+	 */
+	public boolean wasSuccessful(Result downstreamResult) {
 		if (downstreamResult == null)
 		{
-			Logger.log("Downstream build had failed in an unknown manner");
+			logger.log("Downstream build had failed in an unknown manner");
 			throw new DownstreamProjectCrashed();
 		} else if (successfull(downstreamResult)) {
-			Logger.log("Downstream build was succesful");
+			logger.log("Downstream build was succesful");
 			return true;
 		} else if (aborted(downstreamResult)) {
-			Logger.log("Downstream build was aborted");
+			logger.log("Downstream build was aborted");
 			throw new DownstreamProjectCrashed();
 		} else {
-			Logger.log("Downstream build had failed " + downstreamResult.toString());
+			logger.log("Downstream build had failed " + downstreamResult.toString());
 			return false;
 		}
 	}
@@ -119,7 +418,7 @@ public class CommitTester {
 		
 		for (ParametersAction parametersAction : actions) {
 			for (ParameterValue parameterValue : parametersAction.getParameters()) {
-				Logger.log("Aggregating parameter - " + parameterValue);
+				logger.debug("Aggregating parameter - " + parameterValue);
 				params.put(parameterValue.getName(), parameterValue);
 			}
 		}
@@ -144,7 +443,7 @@ public class CommitTester {
 			ParameterValue defaultValue = paramDefinition.getDefaultParameterValue();
 
 			if (defaultValue != null) {
-				Logger.log("Adding default value of parameter - " + defaultValue);
+				logger.debug("Adding default value of parameter - " + defaultValue);
 				defValues.put(paramDefinition.getName(), defaultValue);
 			}
 		}
@@ -152,27 +451,22 @@ public class CommitTester {
 		return defValues;
 	}
 
-	private static Job<?, ?> findDownStreamProject(String jobToRun) 
+	private static Job<?, ?> findDownStreamProject(String jobToRun, Logger logger) 
 	{
-		Logger.log("Looking for '" + jobToRun + "' as downstream project");
-		Jenkins jenkins = Jenkins.getInstance();
-		if (jenkins == null) return null;
-		
-		for (Job<?, ?> proj : jenkins.getAllItems(Job.class)) 
-			if (proj.getName().equals(jobToRun))
-				return proj;
-		return null;
+		logger.log("Looking for '" + jobToRun + "' as downstream project");
+		return DownstreamJobIndex.find(jobToRun, logger);
 	}
 	
 	public static CommitTester buildFor(
 								Run<?, ?> bisectBuild, 
-								String jobToRun) 
+								String jobToRun,
+								Logger logger) 
 	{
-		Job<?, ?> downstreamProject = findDownStreamProject(jobToRun);
+		Job<?, ?> downstreamProject = findDownStreamProject(jobToRun, logger);
 		
     	if (downstreamProject == null)
     		throw new DownstreamProjectNotFound();
     	
-		return new CommitTester(bisectBuild, downstreamProject);
+		return new CommitTester(bisectBuild, downstreamProject, logger);
 	}
 }
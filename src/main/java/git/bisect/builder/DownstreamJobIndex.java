@@ -0,0 +1,112 @@
+package git.bisect.builder;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import git.bisect.Logger;
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.listeners.ItemListener;
+import jenkins.model.Jenkins;
+
+/**
+ * Keeps the full names of all jobs indexed by their short names,
+ * so a downstream project can be found without walking every item on the controller.
+ */
+@Extension
+public class DownstreamJobIndex extends ItemListener {
+	private static final Map<String, Set<String>> fullNamesByName = new ConcurrentHashMap<>();
+	private static volatile boolean indexed = false;
+
+	/**
+	 * Finds a job by its full name, or by its short name if no job has that full name.
+	 */
+	public static Job<?, ?> find(String jobName, Logger logger) {
+		Jenkins jenkins = Jenkins.getInstanceOrNull();
+		if (jenkins == null) return null;
+		
+		@SuppressWarnings("rawtypes")
+		Job job = jenkins.getItemByFullName(jobName, Job.class);
+		if (job != null)
+			return job;
+		
+		if (!indexed)
+			reindex(jenkins);
+		
+		Set<String> fullNames = fullNamesByName.get(jobName);
+		if (fullNames == null || fullNames.isEmpty())
+			return null;
+		
+		if (fullNames.size() > 1)
+			logger.log("The name '" + jobName + "' matches several jobs - " + fullNames + 
+					   ", using the first one. Use the full name of the job to choose a different one");
+		
+		for (String fullName : fullNames)
+		{
+			job = jenkins.getItemByFullName(fullName, Job.class);
+			if (job != null)
+				return job;
+		}
+		return null;
+	}
+	
+	private static synchronized void reindex(Jenkins jenkins) {
+		fullNamesByName.clear();
+		for (Job<?, ?> job : jenkins.getAllItems(Job.class))
+			add(job.getName(), job.getFullName());
+		indexed = true;
+	}
+	
+	private static void add(String name, String fullName) {
+		fullNamesByName.computeIfAbsent(name, key -> new ConcurrentSkipListSet<>()).add(fullName);
+	}
+	
+	private static void remove(String name, String fullName) {
+		Set<String> fullNames = fullNamesByName.get(name);
+		if (fullNames != null)
+			fullNames.remove(fullName);
+	}
+	
+	private static String shortNameOf(String fullName) {
+		return fullName.substring(fullName.lastIndexOf('/') + 1);
+	}
+	
+	@Override
+	public void onLoaded() {
+		Jenkins jenkins = Jenkins.getInstanceOrNull();
+		if (jenkins != null)
+			reindex(jenkins);
+	}
+	
+	@Override
+	public void onCreated(Item item) {
+		if (item instanceof Job)
+			add(item.getName(), item.getFullName());
+	}
+	
+	@Override
+	public void onCopied(Item src, Item item) {
+		onCreated(item);
+	}
+	
+	@Override
+	public void onDeleted(Item item) {
+		if (item instanceof Job)
+			remove(item.getName(), item.getFullName());
+	}
+	
+	/**
+	 * Called for renames and moves, and for every job inside a renamed or moved folder.
+	 */
+	@Override
+	public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+		if (!(item instanceof Job))
+			return;
+		
+		remove(shortNameOf(oldFullName), oldFullName);
+		add(shortNameOf(newFullName), newFullName);
+	}
+}
@@ -1,14 +1,20 @@
 package git.bisect.builder;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
 import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 import git.bisect.CommitPair;
 import git.bisect.Logger;
 import git.bisect.builder.CommandsRunner.BisectionResult;
-import git.bisect.builder.CommandsRunner.CommandOutput;
 import git.bisect.builder.CommandsRunner.CommitState;
 import hudson.EnvVars;
 import hudson.Extension;
@@ -17,11 +23,14 @@ import hudson.Launcher;
 import hudson.model.AbstractProject;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.model.queue.QueueTaskFuture;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
+import hudson.util.ListBoxModel;
 import jenkins.tasks.SimpleBuildStep;
 
 public class GitBisectBuilder extends Builder implements SimpleBuildStep {
+	private static final int DURATION_HISTORY_DEPTH = 100;
 
     final String jobToRun;
 	final String goodStartCommit;
@@ -33,12 +42,37 @@ public class GitBisectBuilder extends Builder implements SimpleBuildStep {
 	final int minSuccessfulIterations;
 	final boolean overrideGitCommand;
 	final String gitCommand;
+	int parallelProbes = 1;
+	int concurrentIterations = 1;
+	boolean speculative;
+	boolean useJGitEngine;
+	boolean useVerdictCache;
+	int buildHistoryDepth;
+	String costModel;
+	String pathspecs;
+	boolean skipCrashedRevisions;
+	boolean firstParent;
+	boolean drillDownMerges;
+	boolean releaseExecutor;
+	boolean verboseLogging;
+	int nodeAffinityWaitSeconds;
+	boolean deepenShallowClones;
 
     transient BisectConfiguration configuration;
-	transient CommandsRunner helper;
+	transient BisectEngine helper;
 	transient CommitTester commitTester;
 	transient EnvVars envVars;
+	transient Logger logger;
 	transient CommitPair commitRange;
+	transient BisectState bisectState;
+	transient HashMap<String, QueueTaskFuture<? extends Run<?, ?>>> speculativeBuilds;
+	transient int usefulSpeculativeBuilds;
+	transient int wastedSpeculativeBuilds;
+	transient VerdictCache verdictCache;
+	transient TreeMap<String, String> cachedParameters;
+	transient ProbeCostModel probeCostModel;
+	transient List<String> expandedPathspecs;
+	transient BisectMetrics metrics;
 	
 	// DataBoundConstructor is for the jelly config file
 	@DataBoundConstructor
@@ -64,6 +98,81 @@ public class GitBisectBuilder extends Builder implements SimpleBuildStep {
 		this.overrideGitCommand = overrideGitCommand;
 		this.gitCommand = gitCommand;
     }
+	
+	@DataBoundSetter
+	public void setParallelProbes(int parallelProbes) {
+		this.parallelProbes = parallelProbes;
+	}
+	
+	@DataBoundSetter
+	public void setConcurrentIterations(int concurrentIterations) {
+		this.concurrentIterations = concurrentIterations;
+	}
+	
+	@DataBoundSetter
+	public void setSpeculative(boolean speculative) {
+		this.speculative = speculative;
+	}
+	
+	@DataBoundSetter
+	public void setUseJGitEngine(boolean useJGitEngine) {
+		this.useJGitEngine = useJGitEngine;
+	}
+	
+	@DataBoundSetter
+	public void setUseVerdictCache(boolean useVerdictCache) {
+		this.useVerdictCache = useVerdictCache;
+	}
+	
+	@DataBoundSetter
+	public void setBuildHistoryDepth(int buildHistoryDepth) {
+		this.buildHistoryDepth = buildHistoryDepth;
+	}
+	
+	@DataBoundSetter
+	public void setCostModel(String costModel) {
+		this.costModel = costModel;
+	}
+	
+	@DataBoundSetter
+	public void setPathspecs(String pathspecs) {
+		this.pathspecs = pathspecs;
+	}
+	
+	@DataBoundSetter
+	public void setSkipCrashedRevisions(boolean skipCrashedRevisions) {
+		this.skipCrashedRevisions = skipCrashedRevisions;
+	}
+	
+	@DataBoundSetter
+	public void setFirstParent(boolean firstParent) {
+		this.firstParent = firstParent;
+	}
+	
+	@DataBoundSetter
+	public void setDrillDownMerges(boolean drillDownMerges) {
+		this.drillDownMerges = drillDownMerges;
+	}
+	
+	@DataBoundSetter
+	public void setReleaseExecutor(boolean releaseExecutor) {
+		this.releaseExecutor = releaseExecutor;
+	}
+	
+	@DataBoundSetter
+	public void setVerboseLogging(boolean verboseLogging) {
+		this.verboseLogging = verboseLogging;
+	}
+	
+	@DataBoundSetter
+	public void setNodeAffinityWaitSeconds(int nodeAffinityWaitSeconds) {
+		this.nodeAffinityWaitSeconds = nodeAffinityWaitSeconds;
+	}
+	
+	@DataBoundSetter
+	public void setDeepenShallowClones(boolean deepenShallowClones) {
+		this.deepenShallowClones = deepenShallowClones;
+	}
 
 	private String expand(String str) 
 	{
@@ -72,64 +181,284 @@ public class GitBisectBuilder extends Builder implements SimpleBuildStep {
 	
     @Override
     public void perform(Run<?,?> build, FilePath workspace, Launcher launcher, TaskListener listener) throws IOException, InterruptedException{
-    	Logger.initializeLogger(listener);
-    	Logger.log("Initializing");
-    	envVars = build.getEnvironment(listener);
-    	String jobToRun = expand(this.jobToRun);
-    	String searchIdentifier = expand(this.searchIdentifier);
-    	String gitCommand = expand(this.gitCommand);
-    	this.commitRange = new CommitPair(
-    			expand(this.goodStartCommit),
-    			expand(this.badEndCommit));
-    	
-    	this.helper = new CommandsRunner(build, workspace, launcher, listener, gitCommand);
-    	this.configuration = new BisectConfiguration(build, workspace, listener, searchIdentifier);
-    	this.commitTester = CommitTester.buildFor(build, jobToRun);
-    	
-		Logger.log("Git command that will be used is: '" + gitCommand + "'");
+    	initialize(build, workspace, launcher, listener);
 		
+		BisectMetricsAggregate.get().searchStarted();
+		AsyncBisections.Search waiting = null;
 		try
 		{
-			runBisection();
+			if (releaseExecutor)
+				waiting = startAsync(build, workspace, AsyncBisections.newSearchId(), false);
+			else
+				runBisection();
+			
+			if (waiting != null)
+				logger.log("Releasing the executor, the search continues on the controller as downstream builds complete.\n" + 
+						   "Its log is written to " + configuration.getAsyncLog().getAbsolutePath());
 		} catch (Exception e)
 		{
-			Logger.log("Cought exception - bisect stopping");
-			e.printStackTrace();
+			logger.log("Cought exception - bisect stopping");
+			logger.printStackTrace(e);
 		}
 		finally {
-			configuration.cleanup();
+			BisectMetricsAggregate.get().searchStopped();
+			discardSpeculativeBuilds(null);
 			// This solves some annoying problems 
 			// Git sometimes fails to delete a branch while bisecting
 			// It tries to do this while fetching, so it's before the next build starts
-			helper.resetBisection();
+			// A search that waits for a downstream build left the repository before scheduling it
+			if (waiting == null)
+				helper.resetBisection();
+			logger.flush();
 		}
     }
+    
+    /**
+     * Sets up a search that starts (or continues) in this build, and its first run
+     */
+    private void initialize(Run<?,?> build, FilePath workspace, Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+    	logger = Logger.of(listener, verboseLogging);
+    	initializeSearch(build, listener);
+    	initializeRun(build, workspace, launcher);
+    	
+    	// The in-process engine reads the same repository, so git deepens it for both engines
+    	if (deepenShallowClones)
+    	{
+    		CommandsRunner git = helper instanceof CommandsRunner ? 
+    				(CommandsRunner) helper : new CommandsRunner(build, workspace, launcher, logger, expand(gitCommand));
+    		git.setMetrics(metrics);
+    		git.fetchHistoryOf(commitRange);
+    	}
+    	
+		logger.log("Git command that will be used is: '" + expand(gitCommand) + "'");
+    }
+    
+    private void initializeSearch(Run<?,?> build, TaskListener listener) throws IOException, InterruptedException {
+    	logger.log("Initializing");
+    	envVars = build.getEnvironment(listener);
+    	this.commitRange = new CommitPair(
+    			expand(this.goodStartCommit),
+    			expand(this.badEndCommit));
+    	this.expandedPathspecs = BisectEngine.pathspecsOf(expand(this.pathspecs));
+    	this.configuration = new BisectConfiguration(build, logger, expand(this.searchIdentifier));
+    	this.commitTester = CommitTester.buildFor(build, expand(this.jobToRun), logger);
+    	this.speculativeBuilds = new HashMap<>();
+    	this.usefulSpeculativeBuilds = 0;
+    	this.wastedSpeculativeBuilds = 0;
+    	this.verdictCache = useVerdictCache ? VerdictCache.get() : null;
+    	this.cachedParameters = null;
+    }
+    
+    /**
+     * Rebuilds what a run of the search is bound to: its log, workspace and launcher.
+     * The metrics are looked up again, the build may have been loaded again since the previous run.
+     */
+    private void initializeRun(Run<?,?> build, FilePath workspace, Launcher launcher) {
+    	configuration.setLogger(logger);
+    	commitTester.setLogger(logger);
+    	if (useJGitEngine)
+    		this.helper = new JGitBisectEngine(workspace, logger);
+    	else
+    		this.helper = new CommandsRunner(build, workspace, launcher, logger, expand(gitCommand));
+    	this.helper.setPathspecs(expandedPathspecs);
+    	this.helper.setFirstParent(firstParent);
+    	this.metrics = BisectMetrics.of(build);
+    	this.helper.setMetrics(metrics);
+    	this.commitTester.setMetrics(metrics);
+    }
 
 	private void runBisection() throws IOException, InterruptedException {
 		BisectionResult bisectResult = startBisecting();
 		
 		if (bisectResult.isDone) {
-			Logger.log("This search identifier has already completed, did you forget changing it in project configuration?\n" + 
+			logger.log("This search identifier has already completed, did you forget changing it in project configuration?\n" + 
 					   "if you forgot what the bad commit was, here it is - \n" + bisectResult.commit);
 			return;
 		}
 		
+		probeCostModel = createCostModel();
 		do {
-			bisectResult = run(bisectResult.commit);
+			long stepStartMillis = System.currentTimeMillis();
+			if (parallelProbes > 1)
+				bisectResult = runProbes(helper.evenlySpacedProbes(parallelProbes));
+			else if (speculative && continuesBuild)
+				bisectResult = runSpeculatively(bisectResult.commit);
+			else if (probeCostModel != null)
+				bisectResult = runCheapest(bisectResult.commit);
+			else
+				bisectResult = run(bisectResult.commit);
+			
+			if (bisectResult.isDone && firstParent && drillDownMerges && !bisectState.isDrilledDown())
+				bisectResult = drillDown(bisectResult.commit);
 			copyResultsToMaster();
+			metrics.recordStep(System.currentTimeMillis() - stepStartMillis);
 		} while (continuesBuild && !bisectResult.isDone);
 		
 		if (bisectResult.isDone)
-			Logger.log("Bisect completed, wanted revision is - " + bisectResult.commit);
+			searchCompleted(bisectResult.commit);
+		
+		if (speculative && continuesBuild)
+			logger.log("Speculative builds - useful: " + usefulSpeculativeBuilds + 
+					   ", wasted: " + wastedSpeculativeBuilds);
 	}
 
+	/**
+	 * Takes the steps that need no downstream build, schedules the build of the next revision and returns,
+	 * the search continues on the controller once that build completes (see {@link AsyncBisections}).
+	 * Parallel probes, speculative builds and concurrent iterations don't apply, one downstream build runs at a time.
+	 * @return the search waiting for a downstream build, or null if the search is done
+	 */
+	private AsyncBisections.Search startAsync(Run<?,?> build, FilePath workspace, String searchId, boolean pipelineStep) throws IOException, InterruptedException {
+		BisectionResult bisectResult = startBisecting();
+		copyResultsToMaster();
+		if (bisectResult.isDone) {
+			logger.log("This search identifier has already completed, the wanted revision is - " + bisectResult.commit);
+			return null;
+		}
+		
+		AsyncBisections.Search search = 
+				AsyncBisections.get().register(searchId, this, build, workspace, configuration.getAsyncLog(), pipelineStep);
+		if (advanceAsync(search, bisectResult))
+			return search;
+		
+		AsyncBisections.get().remove(search);
+		return null;
+	}
+	
+	/**
+	 * Starts the search of a gitBisect Pipeline step, see {@link #startAsync(Run, FilePath, String, boolean)}.
+	 * @param searchId the id the step knows the search by
+	 */
+	AsyncBisections.Search startStep(Run<?,?> build, FilePath workspace, Launcher launcher, TaskListener listener, 
+									 String searchId) throws IOException, InterruptedException {
+		initialize(build, workspace, launcher, listener);
+		AsyncBisections.Search search = null;
+		try
+		{
+			search = startAsync(build, workspace, searchId, true);
+			return search;
+		}
+		finally
+		{
+			// A search that waits for a downstream build left the repository before scheduling it
+			if (search == null)
+				helper.resetBisection();
+			logger.flush();
+		}
+	}
+	
+	/**
+	 * The state of the search as of the last step taken by this builder
+	 */
+	BisectState getBisectState() {
+		return bisectState;
+	}
+	
+	/**
+	 * Continues an asynchronous search once the downstream build of <code>commit</code> completed.
+	 * @return true if the search is waiting for another downstream build
+	 */
+	boolean resumeAsync(AsyncBisections.Search search, Run<?,?> build, FilePath workspace, Launcher launcher, TaskListener listener, 
+						String commit, Run<?,?> downstreamBuild, long scheduledAt) throws IOException, InterruptedException {
+		logger = Logger.of(listener, verboseLogging);
+		// Searches keep a copy of their builder, it sets up the search on its first resume (or the first after a restart) only.
+		// The history of the range was fetched when the search started.
+		if (configuration == null)
+			initializeSearch(build, listener);
+		initializeRun(build, workspace, launcher);
+		boolean waiting = false;
+		try
+		{
+			waiting = continueAsync(search, commit, downstreamBuild, scheduledAt);
+			return waiting;
+		}
+		finally
+		{
+			// A search that waits for a downstream build left the repository before scheduling it
+			if (!waiting)
+				helper.resetBisection();
+			logger.flush();
+		}
+	}
+	
+	private boolean continueAsync(AsyncBisections.Search search, String commit, Run<?,?> downstreamBuild, long scheduledAt) 
+			throws IOException, InterruptedException {
+		BisectionResult bisectResult = startBisecting();
+		if (bisectResult.isDone)
+			return false;
+		
+		logger.log("Downstream build of revision " + commit + " completed");
+		RevisionClassifier classifier = classifierFor(commit);
+		try
+		{
+			record(commit, classifier, commitTester.completed(downstreamBuild, scheduledAt));
+			if (!classifier.verifiedResult())
+				return advanceAsync(search, new BisectionResult(commit, false));
+			
+			bisectResult = mark(commit, CommitState.fromBool(classifier.wasGood()));
+		}
+		catch (DownstreamProjectCrashed e)
+		{
+			bisectResult = skipOrRethrow(commit, e);
+		}
+		
+		if (bisectResult.isDone && firstParent && drillDownMerges && !bisectState.isDrilledDown())
+			bisectResult = drillDown(bisectResult.commit);
+		copyResultsToMaster();
+		if (scheduledAt > 0)
+			metrics.recordStep(System.currentTimeMillis() - scheduledAt);
+		if (!continuesBuild && !bisectResult.isDone)
+		{
+			logger.log("Verdict recorded, the next revision to test is " + bisectResult.commit);
+			return false;
+		}
+		return advanceAsync(search, bisectResult);
+	}
+	
+	/**
+	 * Marks revisions that already have a verdict until one needs a downstream build, and schedules it.
+	 * @return true if a downstream build was scheduled, false if the search is done
+	 */
+	private boolean advanceAsync(AsyncBisections.Search search, BisectionResult bisectResult) throws IOException, InterruptedException {
+		while (!bisectResult.isDone)
+		{
+			String commit = bisectResult.commit;
+			RevisionClassifier classifier = classifierFor(commit);
+			if (!classifier.verifiedResult())
+			{
+				// The search resumes on another thread as soon as the build completes, by then this run must be done with the repository
+				helper.resetBisection();
+				logger.log("Running downstream project with revision = '" + commit +"'");
+				commitTester.schedule(withBisectParams(expand(this.revisionParameterName), commit), 
+									  new AsyncBisections.Marker(search.id, commit));
+				return true;
+			}
+			
+			bisectResult = mark(commit, CommitState.fromBool(classifier.wasGood()));
+			if (bisectResult.isDone && firstParent && drillDownMerges && !bisectState.isDrilledDown())
+				bisectResult = drillDown(bisectResult.commit);
+			copyResultsToMaster();
+		}
+		
+		searchCompleted(bisectResult.commit);
+		return false;
+	}
+	
+	private void searchCompleted(String firstBadCommit) {
+		logger.log("Bisect completed, wanted revision is - " + firstBadCommit);
+		BisectMetricsAggregate.get().recordCompletedSearch(bisectState.getDownstreamBuilds());
+	}
+	
     static class RevisionClassifier
     {
     	private int remainingFailures;
 		private int remainingSuccessfulIterations;
 
-		public RevisionClassifier(int retryCount, int minSuccessfulIterations)
+		private final Logger logger;
+
+		public RevisionClassifier(int retryCount, int minSuccessfulIterations, Logger logger)
     	{
+			this.logger = logger;
 			this.remainingFailures = retryCount;
 			this.remainingSuccessfulIterations = minSuccessfulIterations;
     	}
@@ -140,73 +469,503 @@ public class GitBisectBuilder extends Builder implements SimpleBuildStep {
 				   remainingSuccessfulIterations == 0;
 		}
 		
+		public void restore(int failures, int successfulIterations)
+		{
+			remainingFailures = Math.max(0, remainingFailures - failures);
+			remainingSuccessfulIterations = Math.max(0, remainingSuccessfulIterations - successfulIterations);
+		}
+		
+		/**
+		 * Counts a run, runs that complete after the verdict was reached (or reused) don't change it
+		 */
 		public void updateResult(boolean wasSuccessful)
 		{
+			if (verifiedResult())
+				return;
+			
 			if (wasSuccessful)
 				remainingSuccessfulIterations -= 1;
 			else 
 				remainingFailures -= 1;
 			
-			Logger.log("Remaining failures: " + remainingFailures + 
+			logger.log("Remaining failures: " + remainingFailures + 
 					   " , remaining successful runs: " + remainingSuccessfulIterations);
 		}
 
 		public boolean wasGood() {
 			return remainingSuccessfulIterations == 0;
 		}
+		
+		/**
+		 * The number of runs that may still be needed before a verdict is reached
+		 */
+		public int maxRemainingRuns() {
+			return remainingFailures + remainingSuccessfulIterations - 1;
+		}
     }
     
 	private BisectionResult run(String commit) throws InterruptedException, IOException {
-		Logger.log("Running against revision - " + commit);
+		logger.log("Running against revision - " + commit);
+		
+		RevisionClassifier buildResult = classifierFor(commit);
+		try
+		{
+			if (concurrentIterations > 1)
+				classifyConcurrently(commit, buildResult);
+			else
+				classify(commit, buildResult);
+		}
+		catch (DownstreamProjectCrashed e)
+		{
+			return skipOrRethrow(commit, e);
+		}
+		
+		return mark(commit, CommitState.fromBool(buildResult.wasGood()));
+	}
+	
+	/**
+	 * Gives up on a revision whose downstream build crashed or was aborted.
+	 * Revisions next to it are often broken the same way, so the search continues away from the skipped revisions.
+	 */
+	private BisectionResult skipOrRethrow(String commit, DownstreamProjectCrashed crash) throws IOException, InterruptedException {
+		bisectState.countDownstreamBuild();
+		if (!skipCrashedRevisions)
+			throw crash;
+		
+		logger.log("Revision " + commit + " could not be tested, skipping it");
+		BisectionResult result = mark(commit, CommitState.Skip);
+		if (result.isDone)
+			return result;
+		
+		String probe = helper.probeAwayFrom(bisectState.getSkipped());
+		if (probe == null)
+			return result;
+		
+		logger.log("Continuing with " + probe + ", away from the skipped revisions");
+		return new BisectionResult(probe, false);
+	}
+	
+	/**
+	 * Like {@link #run(String)}, but tests the revision the cost model expects to end the search the soonest,
+	 * which is not necessarily the midpoint. The estimated and actual cost of the step are recorded.
+	 */
+	private BisectionResult runCheapest(String midpoint) throws InterruptedException, IOException {
+		CandidateWeights weights = helper.candidateWeights();
+		List<String> candidates = weights.testable();
+		if (candidates.isEmpty())
+			return run(midpoint);
+		
+		Map<String, Long> costs = probeCostModel.estimate(candidates);
+		String probe = ProbeCostModel.cheapestProbe(weights, costs);
+		long estimatedMillis = costs.get(probe);
+		if (!probe.equals(midpoint) && costs.containsKey(midpoint))
+			logger.log("Testing " + probe + " (estimated " + estimatedMillis / 1000 + "s) instead of the midpoint " + 
+					   midpoint + " (estimated " + costs.get(midpoint) / 1000 + "s)");
+		
+		long millisBefore = commitTester.getTotalBuildMillis();
+		int buildsBefore = commitTester.getCompletedBuilds();
+		BisectionResult result = run(probe);
+		long actualMillis = commitTester.getTotalBuildMillis() - millisBefore;
+		int builds = commitTester.getCompletedBuilds() - buildsBefore;
+		
+		logger.log("Step cost of " + probe + " - estimated " + estimatedMillis / 1000 + "s per build, " + 
+				   "actual " + actualMillis / 1000 + "s over " + builds + " builds");
+		if (builds > 0)
+			probeCostModel.recordActual(probe, actualMillis / builds);
+		bisectState.recordStepCost(probe, estimatedMillis, actualMillis, builds);
+		return result;
+	}
+	
+	private ProbeCostModel createCostModel() throws IOException, InterruptedException {
+		if (costModel == null || costModel.isEmpty())
+			return null;
+		
+		long estimatedDuration = Math.max(1, commitTester.getEstimatedDuration());
+		switch (costModel) {
+		case "changedLines":
+			return new ChangeSizeCostModel(helper, estimatedDuration, false);
+		case "touchedPaths":
+			return new ChangeSizeCostModel(helper, estimatedDuration, true);
+		case "buildDuration":
+			return new BuildDurationCostModel(measuredDurations(), estimatedDuration);
+		default:
+			throw new RuntimeException("Unknown cost model - '" + costModel + "'");
+		}
+	}
+	
+	private Map<String, Long> measuredDurations() throws IOException, InterruptedException {
+		int depth = buildHistoryDepth > 0 ? buildHistoryDepth : DURATION_HISTORY_DEPTH;
+		HashMap<String, Long> durations = commitTester.recentDurations(expand(this.revisionParameterName), depth);
+		Map<String, String> commits = helper.resolveCommits(durations.keySet());
+		
+		HashMap<String, Long> durationsByCommit = new HashMap<>();
+		for (Map.Entry<String, Long> duration : durations.entrySet())
+			if (commits.get(duration.getKey()) != null)
+				durationsByCommit.putIfAbsent(commits.get(duration.getKey()), duration.getValue());
 		
-		int neededFailureNumber = retryCount + 1;
+		logger.log("Found the build durations of " + durationsByCommit.size() + " revisions");
+		return durationsByCommit;
+	}
+	
+	/**
+	 * The first-parent search found the merge that introduced the problem,
+	 * the search continues among the commits of the branch it merged (between the merge and its first parent).
+	 */
+	private BisectionResult drillDown(String merge) throws IOException, InterruptedException {
+		Map<String, String> parents = helper.resolveCommits(Arrays.asList(merge + "^1", merge + "^2"));
+		if (parents.get(merge + "^2") == null)
+		{
+			logger.log(merge + " is not a merge, there is no branch to search in");
+			return new BisectionResult(merge, true);
+		}
+		
+		logger.log("The first-parent search found the merge " + merge + ", searching inside the branch it merged");
+		helper.setFirstParent(false);
+		helper.resetBisection();
+		bisectState.drillInto(merge, parents.get(merge + "^1"));
+		return helper.restore(bisectState);
+	}
+	
+	/**
+	 * Creates the classifier of a revision, including runs made before the search was interrupted
+	 * and verdicts other searches reached for the same tree
+	 */
+	private RevisionClassifier classifierFor(String commit) throws IOException, InterruptedException {
+		RevisionClassifier classifier = new RevisionClassifier(retryCount + 1, minSuccessfulIterations, logger);
+		BisectState.Attempts previousAttempts = bisectState.attemptsOf(commit);
+		if (previousAttempts.failures + previousAttempts.successes > 0)
+		{
+			logger.log("Revision " + commit + " already had " + previousAttempts.failures + 
+					   " failures and " + previousAttempts.successes + " successful runs");
+			classifier.restore(previousAttempts.failures, previousAttempts.successes);
+		}
+		
+		CommitState cachedVerdict = verdictCache == null ? null : verdictCache.lookup(verdictCacheKey(commit));
+		if (cachedVerdict != null)
+		{
+			logger.log("Revision " + commit + " has the same tree and parameters as an already tested revision, " + 
+					   "reusing its verdict - " + cachedVerdict);
+			if (cachedVerdict == CommitState.Good)
+				classifier.restore(0, minSuccessfulIterations);
+			else
+				classifier.restore(retryCount + 1, 0);
+		}
+		return classifier;
+	}
+	
+	private void record(String commit, RevisionClassifier classifier, boolean wasSuccessful) throws IOException, InterruptedException {
+		classifier.updateResult(wasSuccessful);
+		bisectState.recordAttempt(commit, wasSuccessful);
+		bisectState.countDownstreamBuild();
+		configuration.saveState(bisectState);
 		
-		RevisionClassifier buildResult = new RevisionClassifier(neededFailureNumber, minSuccessfulIterations);
+		if (verdictCache != null && classifier.verifiedResult())
+			verdictCache.put(verdictCacheKey(commit), CommitState.fromBool(classifier.wasGood()));
+	}
+	
+	private String verdictCacheKey(String commit) throws IOException, InterruptedException {
+		String revisionParameterName = expand(this.revisionParameterName);
+		if (cachedParameters == null)
+		{
+			cachedParameters = commitTester.effectiveParameters(withBisectParams(revisionParameterName, commit));
+			cachedParameters.remove(revisionParameterName);
+		}
+		return VerdictCache.keyOf(commitTester.getDownstreamName(), helper.treeOf(commit), cachedParameters);
+	}
+	
+	private BisectionResult mark(String commit, CommitState state) throws IOException, InterruptedException {
+		BisectionResult result = helper.markCommitAs(commit, state);
+		bisectState.recordVerdict(commit, state);
+		if (result.isDone)
+			bisectState.complete(result.commit);
+		return result;
+	}
+
+	/**
+	 * Tests several revisions of the remaining range at once and narrows the search
+	 * to the sub-interval between the newest good probe and the oldest bad probe.
+	 * @param probes revisions to test, newest first
+	 */
+	private BisectionResult runProbes(List<String> probes) throws InterruptedException, IOException {
+		logger.log("Running " + probes.size() + " parallel probes - " + probes);
+		
+		String revisionParameterName = expand(this.revisionParameterName);
+		HashMap<String, RevisionClassifier> classifiers = new HashMap<>();
+		for (String probe : probes)
+			classifiers.put(probe, classifierFor(probe));
+		
+		List<String> testedProbes = new ArrayList<>(probes);
+		BisectionResult skipResult = null;
+		HashMap<String, HashMap<String, String>> unverified = new HashMap<>();
 		do
 		{
-			Logger.log("Running downstream project with revision = '" + commit +"'");
-			String revisionParameterName = expand(this.revisionParameterName);
-			buildResult.updateResult(commitTester.test(withBisectParams(revisionParameterName, commit)));
+			unverified.clear();
+			for (String probe : testedProbes)
+				if (!classifiers.get(probe).verifiedResult())
+					unverified.put(probe, withBisectParams(revisionParameterName, probe));
+			
+			if (unverified.isEmpty())
+				break;
+			
+			HashMap<String, Boolean> results = commitTester.testAll(unverified);
+			for (String probe : unverified.keySet())
+			{
+				logger.log("Probe " + probe + ":");
+				if (results.get(probe) == null)
+				{
+					testedProbes.remove(probe);
+					skipResult = skipOrRethrow(probe, new DownstreamProjectCrashed());
+				}
+				else
+					record(probe, classifiers.get(probe), results.get(probe));
+			}
 		}
-		while (!buildResult.verifiedResult());
+		while (true);
 		
-		return helper.markCommitAs(commit, CommitState.fromBool(buildResult.wasGood()));
+		if (testedProbes.isEmpty())
+			return skipResult;
+		return markBoundary(testedProbes, classifiers);
+	}
+	
+	/**
+	 * Marks the verdicts of revisions tested together, which need not be on a single line of history.
+	 * Of the bad revisions the one the others descend from is marked, a bad revision on an unrelated branch would replace it.
+	 * Every good revision is marked, unless it descends from the marked bad one, that result contradicts the other.
+	 */
+	private BisectionResult markBoundary(List<String> probes, HashMap<String, RevisionClassifier> classifiers) throws IOException, InterruptedException {
+		String bad = null;
+		List<String> goods = new ArrayList<>();
+		for (String probe : probes)
+		{
+			if (classifiers.get(probe).wasGood())
+				goods.add(probe);
+			else if (bad == null || helper.isAncestor(probe, bad))
+				bad = probe;
+		}
+		
+		BisectionResult result = null;
+		if (bad != null)
+			result = mark(bad, CommitState.Bad);
+		
+		for (String good : goods)
+		{
+			if (result != null && result.isDone)
+				break;
+			
+			if (bad != null && helper.isAncestor(bad, good))
+				logger.log("Ignoring inconsistent good result of " + good + ", it descends from the bad " + bad);
+			else
+				result = mark(good, CommitState.Good);
+		}
+		return result;
+	}
+
+	/**
+	 * Like {@link #run(String)}, but while the revision is being tested the two revisions 
+	 * that may be tested next (one for each possible verdict) are already scheduled.
+	 * Once the verdict is known, the build of the branch that was not taken is cancelled.
+	 */
+	private BisectionResult runSpeculatively(String commit) throws InterruptedException, IOException {
+		logger.log("Running against revision - " + commit);
+		String revisionParameterName = expand(this.revisionParameterName);
+		
+		RevisionClassifier buildResult = classifierFor(commit);
+		// A revision with a known verdict needs no build, its speculative build is cancelled with the others below
+		QueueTaskFuture<? extends Run<?, ?>> firstBuild = buildResult.verifiedResult() ? null : speculativeBuilds.remove(commit);
+		if (firstBuild != null)
+		{
+			logger.log("Revision " + commit + " was already scheduled speculatively");
+			usefulSpeculativeBuilds += 1;
+		}
+		else if (!buildResult.verifiedResult())
+		{
+			logger.log("Running downstream project with revision = '" + commit +"'");
+			firstBuild = commitTester.schedule(withBisectParams(revisionParameterName, commit));
+		}
+		discardSpeculativeBuilds(null);
+		
+		// A skip verdict leaves the range as it is, only good and bad lead to a different next revision
+		for (CommitState assumedState : Arrays.asList(CommitState.Good, CommitState.Bad))
+		{
+			String nextProbe = helper.nextProbeAssuming(commit, assumedState);
+			if (nextProbe != null && !speculativeBuilds.containsKey(nextProbe))
+			{
+				logger.log("Speculatively scheduling " + nextProbe + " in case " + commit + " is " + assumedState);
+				speculativeBuilds.put(nextProbe, commitTester.schedule(withBisectParams(revisionParameterName, nextProbe)));
+			}
+		}
+		
+		BisectionResult result;
+		try
+		{
+			if (firstBuild != null)
+				record(commit, buildResult, commitTester.waitFor(firstBuild));
+			if (concurrentIterations > 1)
+				classifyConcurrently(commit, buildResult);
+			else
+				classify(commit, buildResult);
+			
+			result = mark(commit, CommitState.fromBool(buildResult.wasGood()));
+		}
+		catch (DownstreamProjectCrashed e)
+		{
+			result = skipOrRethrow(commit, e);
+		}
+		
+		discardSpeculativeBuilds(result.isDone ? null : result.commit);
+		return result;
+	}
+	
+	/**
+	 * Cancels every speculative build except the one of <code>nextCommit</code>
+	 */
+	private void discardSpeculativeBuilds(String nextCommit) {
+		if (speculativeBuilds == null)
+			return;
+		
+		List<QueueTaskFuture<? extends Run<?, ?>>> wrongBranch = new ArrayList<>();
+		for (String speculatedCommit : new ArrayList<>(speculativeBuilds.keySet()))
+			if (!speculatedCommit.equals(nextCommit))
+				wrongBranch.add(speculativeBuilds.remove(speculatedCommit));
+		
+		wastedSpeculativeBuilds += wrongBranch.size();
+		commitTester.cancel(wrongBranch);
+	}
+	
+	private void classify(String commit, RevisionClassifier buildResult) throws InterruptedException, IOException {
+		while (!buildResult.verifiedResult())
+		{
+			logger.log("Running downstream project with revision = '" + commit +"'");
+			String revisionParameterName = expand(this.revisionParameterName);
+			record(commit, buildResult, commitTester.test(withBisectParams(revisionParameterName, commit)));
+		}
+	}
+	
+	/**
+	 * Keeps up to concurrentIterations builds of the same revision running at once,
+	 * builds that are still pending once a verdict is reached are cancelled.
+	 */
+	private void classifyConcurrently(String commit, RevisionClassifier buildResult) throws InterruptedException, IOException {
+		String revisionParameterName = expand(this.revisionParameterName);
+		List<QueueTaskFuture<? extends Run<?, ?>>> pending = new ArrayList<>();
+		try
+		{
+			while (!buildResult.verifiedResult())
+			{
+				int wantedBuilds = Math.min(concurrentIterations, buildResult.maxRemainingRuns());
+				while (pending.size() < wantedBuilds)
+				{
+					logger.log("Running downstream project with revision = '" + commit +"'");
+					pending.add(commitTester.schedule(withBisectParams(revisionParameterName, commit)));
+				}
+				
+				QueueTaskFuture<? extends Run<?, ?>> completed = commitTester.waitForAny(pending);
+				pending.remove(completed);
+				record(commit, buildResult, commitTester.waitFor(completed));
+			}
+		}
+		finally
+		{
+			commitTester.cancel(pending);
+		}
 	}
 
     private void copyResultsToMaster()
 			throws IOException, InterruptedException {
-    	Logger.log("Copying results to master");
-    	
-    	CommandOutput bisectionLog = helper.getBisectionLog();
-    	
-    	if (bisectionLog.exitStatus != 0)
-    	{
-    		throw new RuntimeException(
-    				"Running 'git bisect log' failed with the following details:\n" +
-    				"exitStatus = " + bisectionLog.exitStatus + "\n" + 
-    				"stdout = '" + bisectionLog.stdout + "'\n" + 
-    				"stderr = '" + bisectionLog.stderr + "'");
-    	}
+    	logger.log("Copying results to master");
     	
-    	configuration.saveContent(bisectionLog.stdout + "\n");
+    	configuration.save(bisectState);
 	}
 
+	/**
+	 * Starts the search exactly once, either from its saved state or from the given range
+	 */
 	private BisectionResult startBisecting() throws IOException, InterruptedException {
 		helper.resetBisection();
-		helper.startBisection();
-        
-        return runInitialBisection();
+
+		BisectionResult result = runInitialBisection();
+		if (nodeAffinityWaitSeconds > 0)
+			commitTester.setNodeAffinity(new NodeAffinity(helper, bisectState.getBuiltOn(), expand(revisionParameterName), 
+														  TimeUnit.SECONDS.toMillis(nodeAffinityWaitSeconds), logger));
+		return result;
 	}
 
 	private BisectionResult runInitialBisection() throws IOException, InterruptedException {
-		if (configuration.hasPreviousConfiguration())
-			return bisectWithPreviousResults();
-        else
-        	return bisectWithGivenInput();
+		bisectState = configuration.loadState();
+		// Searches that were started before state snapshots existed only have a journal
+		if (bisectState == null && configuration.hasPreviousConfiguration())
+			bisectState = BisectState.fromLog(configuration.getJournaledLines());
+		
+		if (bisectState != null && (bisectState.isComplete() || bisectState.hasBounds()))
+		{
+			if (bisectState.isDrilledDown())
+			{
+				logger.log("Continuing inside the branch of the merge " + bisectState.getDrilledMerge());
+				helper.setFirstParent(false);
+			}
+			return helper.restore(bisectState);
+		}
+		
+		if (bisectState != null)
+			logger.log("The saved search has no good and bad revisions, starting it over from the given range");
+		bisectState = new BisectState();
+		BisectionResult result = bisectWithGivenInput();
+		helper.logPrunedCommits(expandedPathspecs);
+		if (buildHistoryDepth > 0 && !result.isDone)
+			result = bisectWithBuildHistory(result);
+		return result;
 	}
-
-	private BisectionResult bisectWithPreviousResults() throws IOException, InterruptedException {
-		return helper.bisectFromFile(configuration.localFile());
+	
+	/**
+	 * Narrows the range with builds the tester project already ran for revisions inside it,
+	 * every such build counts as one run of its revision.
+	 */
+	private BisectionResult bisectWithBuildHistory(BisectionResult result) throws IOException, InterruptedException {
+		HashMap<String, List<Boolean>> history = commitTester.recentResults(expand(this.revisionParameterName), buildHistoryDepth);
+		if (history.isEmpty())
+			return result;
+		
+		Map<String, String> commits = helper.resolveCommits(history.keySet());
+		HashMap<String, List<Boolean>> historyByCommit = new HashMap<>();
+		for (Map.Entry<String, List<Boolean>> revision : history.entrySet())
+		{
+			String commit = commits.get(revision.getKey());
+			if (commit != null)
+				historyByCommit.computeIfAbsent(commit, key -> new ArrayList<>()).addAll(revision.getValue());
+		}
+		
+		List<String> classified = new ArrayList<>();
+		HashMap<String, RevisionClassifier> classifiers = new HashMap<>();
+		for (String candidate : helper.remainingCandidates())
+		{
+			List<Boolean> runs = historyByCommit.get(candidate);
+			if (runs == null)
+				continue;
+			
+			RevisionClassifier classifier = classifierFor(candidate);
+			for (boolean wasSuccessful : runs)
+			{
+				if (classifier.verifiedResult())
+					break;
+				
+				logger.log("Previous build of " + candidate + ":");
+				classifier.updateResult(wasSuccessful);
+				bisectState.recordAttempt(candidate, wasSuccessful);
+			}
+			
+			if (classifier.verifiedResult())
+			{
+				classified.add(candidate);
+				classifiers.put(candidate, classifier);
+			}
+		}
+		configuration.saveState(bisectState);
+		
+		logger.log(classified.size() + " revisions of the range are classified by previous builds of the tester project");
+		if (classified.isEmpty())
+			return result;
+		
+		return markBoundary(classified, classifiers);
 	}
 
 	private BisectionResult bisectWithGivenInput() throws IOException, InterruptedException {
@@ -216,15 +975,16 @@ public class GitBisectBuilder extends Builder implements SimpleBuildStep {
 					+ "either one of the revisions does not exist or the git configuration is malformed. "
 					+ "Check the previous log lines for more information.");
 		
-		helper.markCommitAs(commitRange.badCommit, CommitState.Bad);
+		// Bounds are kept as commit ids so the snapshot doesn't move along with branches
+		Map<String, String> commits = helper.resolveCommits(Arrays.asList(commitRange.badCommit, commitRange.goodCommit));
+		helper.startBisection();
+		mark(commits.get(commitRange.badCommit), CommitState.Bad);
 		return 
-			helper.markCommitAs(commitRange.goodCommit, CommitState.Good);
+			mark(commits.get(commitRange.goodCommit), CommitState.Good);
 	}
 	
 	private boolean validInput() throws IOException, InterruptedException {
-		// TODO: needs to check that goodStart comes before badEnd
-		return helper.checkExistance(commitRange.badCommit) && 
-			   helper.checkExistance(commitRange.goodCommit);
+		return helper.validRange(commitRange);
 	}
 
     // Overridden for better type safety.
@@ -273,6 +1033,66 @@ public class GitBisectBuilder extends Builder implements SimpleBuildStep {
 		return gitCommand;
 	}
 	
+	public int getParallelProbes() {
+		return parallelProbes;
+	}
+	
+	public int getConcurrentIterations() {
+		return concurrentIterations;
+	}
+	
+	public boolean getSpeculative() {
+		return speculative;
+	}
+	
+	public boolean getUseJGitEngine() {
+		return useJGitEngine;
+	}
+	
+	public boolean getUseVerdictCache() {
+		return useVerdictCache;
+	}
+	
+	public int getBuildHistoryDepth() {
+		return buildHistoryDepth;
+	}
+	
+	public String getCostModel() {
+		return costModel;
+	}
+	
+	public String getPathspecs() {
+		return pathspecs;
+	}
+	
+	public boolean getSkipCrashedRevisions() {
+		return skipCrashedRevisions;
+	}
+	
+	public boolean getFirstParent() {
+		return firstParent;
+	}
+	
+	public boolean getDrillDownMerges() {
+		return drillDownMerges;
+	}
+	
+	public boolean getReleaseExecutor() {
+		return releaseExecutor;
+	}
+	
+	public boolean getVerboseLogging() {
+		return verboseLogging;
+	}
+	
+	public int getNodeAffinityWaitSeconds() {
+		return nodeAffinityWaitSeconds;
+	}
+	
+	public boolean getDeepenShallowClones() {
+		return deepenShallowClones;
+	}
+	
 	public static HashMap<String, String> withBisectParams(String revisionParameterName, String commit) {
 		HashMap<String, String> bisectParams = new HashMap<>();
 		bisectParams.put(revisionParameterName, commit);
@@ -289,6 +1109,15 @@ public class GitBisectBuilder extends Builder implements SimpleBuildStep {
         public String getDisplayName() {
             return "Git Bisect";
         }
+
+        public ListBoxModel doFillCostModelItems() {
+            ListBoxModel items = new ListBoxModel();
+            items.add("None, split by commit count", "");
+            items.add("Lines changed by the commit", "changedLines");
+            items.add("Paths touched by the commit", "touchedPaths");
+            items.add("Durations of previous builds", "buildDuration");
+            return items;
+        }
     }
 }
 
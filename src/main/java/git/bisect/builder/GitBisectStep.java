@@ -0,0 +1,342 @@
+package git.bisect.builder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * Runs a search from a Pipeline without holding an executor or a CPS thread while downstream builds run.
+ * The search is kept by {@link AsyncBisections} and survives restarts, once it is done the step returns a map with
+ * <code>firstBadCommit</code> (null if the search could not narrow it down to a single revision),
+ * <code>suspects</code> (the revisions that may be the first bad commit) and <code>completed</code>.
+ *
+ * Inside a node block the current workspace is used, outside of one <code>node</code> and <code>repository</code>
+ * tell where the repository is checked out.
+ */
+public class GitBisectStep extends Step {
+	final String jobToRun;
+	final String goodStartCommit;
+	final String badEndCommit;
+	final String searchIdentifier;
+	final String revisionParameterName;
+	int retryCount;
+	int minSuccessfulIterations = 1;
+	String gitCommand = "git";
+	boolean useJGitEngine;
+	boolean useVerdictCache;
+	int buildHistoryDepth;
+	String costModel;
+	String pathspecs;
+	boolean skipCrashedRevisions;
+	boolean firstParent;
+	boolean drillDownMerges;
+	boolean verboseLogging;
+	int nodeAffinityWaitSeconds;
+	boolean deepenShallowClones;
+	String node;
+	String repository;
+
+	@DataBoundConstructor
+	public GitBisectStep(String jobToRun, String goodStartCommit, String badEndCommit, String searchIdentifier,
+						 String revisionParameterName) {
+		this.jobToRun = jobToRun;
+		this.goodStartCommit = goodStartCommit;
+		this.badEndCommit = badEndCommit;
+		this.searchIdentifier = searchIdentifier;
+		this.revisionParameterName = revisionParameterName;
+	}
+
+	@DataBoundSetter
+	public void setRetryCount(int retryCount) {
+		this.retryCount = retryCount;
+	}
+
+	@DataBoundSetter
+	public void setMinSuccessfulIterations(int minSuccessfulIterations) {
+		this.minSuccessfulIterations = minSuccessfulIterations;
+	}
+
+	@DataBoundSetter
+	public void setGitCommand(String gitCommand) {
+		this.gitCommand = gitCommand;
+	}
+
+	@DataBoundSetter
+	public void setUseJGitEngine(boolean useJGitEngine) {
+		this.useJGitEngine = useJGitEngine;
+	}
+
+	@DataBoundSetter
+	public void setUseVerdictCache(boolean useVerdictCache) {
+		this.useVerdictCache = useVerdictCache;
+	}
+
+	@DataBoundSetter
+	public void setBuildHistoryDepth(int buildHistoryDepth) {
+		this.buildHistoryDepth = buildHistoryDepth;
+	}
+
+	@DataBoundSetter
+	public void setCostModel(String costModel) {
+		this.costModel = costModel;
+	}
+
+	@DataBoundSetter
+	public void setPathspecs(String pathspecs) {
+		this.pathspecs = pathspecs;
+	}
+
+	@DataBoundSetter
+	public void setSkipCrashedRevisions(boolean skipCrashedRevisions) {
+		this.skipCrashedRevisions = skipCrashedRevisions;
+	}
+
+	@DataBoundSetter
+	public void setFirstParent(boolean firstParent) {
+		this.firstParent = firstParent;
+	}
+
+	@DataBoundSetter
+	public void setDrillDownMerges(boolean drillDownMerges) {
+		this.drillDownMerges = drillDownMerges;
+	}
+
+	@DataBoundSetter
+	public void setVerboseLogging(boolean verboseLogging) {
+		this.verboseLogging = verboseLogging;
+	}
+
+	@DataBoundSetter
+	public void setNodeAffinityWaitSeconds(int nodeAffinityWaitSeconds) {
+		this.nodeAffinityWaitSeconds = nodeAffinityWaitSeconds;
+	}
+
+	@DataBoundSetter
+	public void setDeepenShallowClones(boolean deepenShallowClones) {
+		this.deepenShallowClones = deepenShallowClones;
+	}
+
+	@DataBoundSetter
+	public void setNode(String node) {
+		this.node = node;
+	}
+
+	@DataBoundSetter
+	public void setRepository(String repository) {
+		this.repository = repository;
+	}
+
+	/**
+	 * The step runs the same search as the build step, always as a single continues search
+	 */
+	GitBisectBuilder toBuilder() {
+		GitBisectBuilder builder = new GitBisectBuilder(jobToRun, goodStartCommit, badEndCommit, searchIdentifier,
+				revisionParameterName, retryCount, true, minSuccessfulIterations, true, gitCommand);
+		builder.setUseJGitEngine(useJGitEngine);
+		builder.setUseVerdictCache(useVerdictCache);
+		builder.setBuildHistoryDepth(buildHistoryDepth);
+		builder.setCostModel(costModel);
+		builder.setPathspecs(pathspecs);
+		builder.setSkipCrashedRevisions(skipCrashedRevisions);
+		builder.setFirstParent(firstParent);
+		builder.setDrillDownMerges(drillDownMerges);
+		builder.setVerboseLogging(verboseLogging);
+		builder.setNodeAffinityWaitSeconds(nodeAffinityWaitSeconds);
+		builder.setDeepenShallowClones(deepenShallowClones);
+		builder.setReleaseExecutor(true);
+		return builder;
+	}
+
+	@Override
+	public StepExecution start(StepContext context) throws Exception {
+		return new Execution(context, toBuilder(), node, repository);
+	}
+
+	/**
+	 * @return the listener of the step running the search, or null if there is none
+	 */
+	static TaskListener listenerOf(String searchId) {
+		List<TaskListener> listeners = Collections.synchronizedList(new ArrayList<>());
+		try {
+			StepExecution.applyAll(Execution.class, execution -> {
+				if (searchId.equals(execution.searchId))
+				{
+					try {
+						listeners.add(execution.getContext().get(TaskListener.class));
+					} catch (IOException | InterruptedException e) {
+						execution.getContext().onFailure(e);
+					}
+				}
+				return null;
+			}).get();
+		} catch (InterruptedException | ExecutionException e) {
+			return null;
+		}
+		return listeners.isEmpty() ? null : listeners.get(0);
+	}
+
+	/**
+	 * Completes the step running the search
+	 * @param error the reason the search stopped, or null if it stopped normally
+	 */
+	static void searchEnded(String searchId, BisectState state, Throwable error) {
+		StepExecution.applyAll(Execution.class, execution -> {
+			if (searchId.equals(execution.searchId))
+				execution.complete(state, error);
+			return null;
+		});
+	}
+
+	static HashMap<String, Object> resultOf(BisectState state) {
+		List<String> suspects = new ArrayList<>();
+		if (state != null && state.isComplete())
+			suspects.addAll(Arrays.asList(state.getFirstBadCommit().trim().split("\\s+")));
+
+		HashMap<String, Object> result = new HashMap<>();
+		result.put("completed", !suspects.isEmpty());
+		result.put("firstBadCommit", suspects.size() == 1 ? suspects.get(0) : null);
+		result.put("suspects", suspects);
+		return result;
+	}
+
+	public static class Execution extends StepExecution {
+		private static final long serialVersionUID = 1L;
+
+		private final transient GitBisectBuilder builder;
+		private final String node;
+		private final String repository;
+		private String searchId;
+		private transient volatile boolean stopped;
+
+		Execution(StepContext context, GitBisectBuilder builder, String node, String repository) {
+			super(context);
+			this.builder = builder;
+			this.node = node;
+			this.repository = repository;
+		}
+
+		/**
+		 * Git commands run on a controller thread, the CPS thread is released right away.
+		 * The id of the search is chosen before, so it is saved with the step and the step can stop the search at any time.
+		 */
+		@Override
+		public boolean start() throws Exception {
+			searchId = AsyncBisections.newSearchId();
+			Timer.get().submit(() -> {
+				try {
+					TaskListener listener = getContext().get(TaskListener.class);
+					FilePath workspace = workspace();
+					Launcher launcher = getContext().get(Launcher.class);
+					if (launcher == null)
+						launcher = launcherOf(workspace, listener);
+
+					if (builder.startStep(getContext().get(Run.class), workspace, launcher, listener, searchId) == null)
+						complete(builder.getBisectState(), null);
+					else if (stopped)
+						AsyncBisections.get().stop(searchId);
+				} catch (Exception e) {
+					getContext().onFailure(e);
+				}
+			});
+			return false;
+		}
+
+		private static Launcher launcherOf(FilePath workspace, TaskListener listener) {
+			Computer computer = workspace.toComputer();
+			Node workspaceNode = computer == null ? null : computer.getNode();
+			if (workspaceNode == null)
+				throw new RuntimeException("The node of " + workspace.getRemote() + " is offline or no longer exists");
+			return workspaceNode.createLauncher(listener);
+		}
+
+		private FilePath workspace() throws IOException, InterruptedException {
+			if (repository == null || repository.isEmpty())
+			{
+				FilePath workspace = getContext().get(FilePath.class);
+				if (workspace == null)
+					throw new RuntimeException("gitBisect needs a node block, or the node and repository parameters");
+				return workspace;
+			}
+
+			Node repositoryNode = node == null || node.isEmpty() ? Jenkins.get() : Jenkins.get().getNode(node);
+			if (repositoryNode == null)
+				throw new RuntimeException("Node '" + node + "' does not exist");
+			return repositoryNode.createPath(repository);
+		}
+
+		void complete(BisectState state, Throwable error) {
+			if (error != null)
+				getContext().onFailure(error);
+			else
+				getContext().onSuccess(resultOf(state));
+		}
+
+		/**
+		 * A waiting search is kept by {@link AsyncBisections}, only a search that was still starting is lost
+		 */
+		@Override
+		public void onResume() {
+			if (AsyncBisections.get().lookup(searchId) == null)
+				getContext().onFailure(new RuntimeException("The controller restarted before the search was started, run it again"));
+		}
+
+		/**
+		 * Stops the search along with its downstream build, its saved state is kept
+		 */
+		@Override
+		public void stop(Throwable cause) throws Exception {
+			// A search that is still starting is stopped once it registers
+			stopped = true;
+			AsyncBisections.get().stop(searchId);
+			getContext().onFailure(cause);
+		}
+
+		@Override
+		public String getStatus() {
+			return AsyncBisections.get().lookup(searchId) == null ? 
+					"starting the search" : "waiting for a downstream build of search " + searchId;
+		}
+	}
+
+	@Extension
+	public static final class DescriptorImpl extends StepDescriptor {
+		@Override
+		public Set<? extends Class<?>> getRequiredContext() {
+			return new HashSet<>(Arrays.asList(Run.class, TaskListener.class));
+		}
+
+		@Override
+		public String getFunctionName() {
+			return "gitBisect";
+		}
+
+		@Override
+		public String getDisplayName() {
+			return "Git Bisect";
+		}
+	}
+}
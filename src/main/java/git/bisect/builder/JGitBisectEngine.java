@@ -0,0 +1,242 @@
+package git.bisect.builder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import git.bisect.Logger;
+import git.bisect.builder.CommandsRunner.BisectionResult;
+import git.bisect.builder.CommandsRunner.CommitState;
+import hudson.FilePath;
+
+/**
+ * Bisects without running git, the commit graph of the range is loaded once with JGit
+ * and every following step is computed in memory.
+ * Pathspecs are matched as path prefixes, wildcards are not supported.
+ */
+public class JGitBisectEngine implements BisectEngine {
+	private final FilePath workspace;
+
+	private String bad;
+	private LinkedHashSet<String> goods = new LinkedHashSet<>();
+	private LinkedHashSet<String> skipped = new LinkedHashSet<>();
+	private CommitGraph graph;
+	private String graphLoadedFor;
+	private List<String> pathspecs = new ArrayList<>();
+	private boolean firstParent = false;
+	private final Logger logger;
+
+	public JGitBisectEngine(FilePath workspace, Logger logger) {
+		this.workspace = workspace;
+		this.logger = logger;
+		logger.log("Using the in-process JGit bisection engine");
+	}
+
+	@Override
+	public Logger logger() {
+		return logger;
+	}
+
+	@Override
+	public void resetBisection() {
+		bad = null;
+		goods.clear();
+		skipped.clear();
+		graph = null;
+		graphLoadedFor = null;
+	}
+
+	@Override
+	public void startBisection() {
+		resetBisection();
+	}
+
+	@Override
+	public void setPathspecs(List<String> pathspecs) {
+		this.pathspecs = new ArrayList<>();
+		for (String pathspec : pathspecs)
+			this.pathspecs.add(pathspec.replaceAll("/+$", ""));
+	}
+
+	@Override
+	public void setFirstParent(boolean firstParent) {
+		this.firstParent = firstParent;
+	}
+
+	@Override
+	public int rangeSize(boolean withPathspecs) throws IOException, InterruptedException {
+		if (!canBisect())
+			return 0;
+		if (withPathspecs)
+			return loadedGraph().size();
+		return workspace.act(new CommitGraph.Loader(bad, goods, new ArrayList<>(), firstParent)).size();
+	}
+
+	@Override
+	public BisectionResult markCommitAs(String commit, CommitState state) throws IOException, InterruptedException {
+		String revision = resolve(commit);
+		if (revision == null)
+			throw new RuntimeException("Can't mark " + commit + ", it does not exist in the repository");
+
+		logger.log("Marking commit " + revision + " as - " + state);
+		if (state == CommitState.Bad)
+			bad = revision;
+		else if (state == CommitState.Skip)
+			skipped.add(revision);
+		else
+			goods.add(revision);
+
+		return nextStep();
+	}
+
+	@Override
+	public BisectionResult restore(BisectState state) throws IOException, InterruptedException {
+		if (state.isComplete())
+			return new BisectionResult(state.getFirstBadCommit(), true);
+		if (!state.hasBounds())
+			throw new RuntimeException("Can't restore a search that has no good and bad revisions");
+
+		bad = state.getBad();
+		goods.clear();
+		goods.addAll(state.getGoods());
+		skipped.clear();
+		skipped.addAll(state.getSkipped());
+
+		return nextStep();
+	}
+
+	@Override
+	public Map<String, String> resolveCommits(Collection<String> revisions) throws IOException, InterruptedException {
+		return workspace.act(new CommitGraph.Resolver(revisions));
+	}
+
+	@Override
+	public boolean isAncestor(String ancestor, String descendant) throws IOException, InterruptedException {
+		return workspace.act(new CommitGraph.AncestryCheck(ancestor, descendant));
+	}
+
+	@Override
+	public int distanceBetween(String commit, String other) throws IOException, InterruptedException {
+		if (graph != null && graph.contains(commit) && graph.contains(other))
+			return graph.distance(commit, other);
+		return workspace.act(new CommitGraph.DistanceCount(commit, other));
+	}
+
+	@Override
+	public String treeOf(String commit) throws IOException, InterruptedException {
+		String tree = workspace.act(new CommitGraph.Resolver(Collections.singletonList(commit), "^{tree}")).get(commit);
+		if (tree == null)
+			throw new RuntimeException("Can't find the tree of " + commit + ", it does not exist in the repository");
+		return tree;
+	}
+
+	@Override
+	public Map<String, ChangeSize> changeSizes(Collection<String> commits) throws IOException, InterruptedException {
+		return workspace.act(new CommitGraph.ChangeCounter(commits));
+	}
+
+	@Override
+	public List<String> remainingCandidates() throws IOException, InterruptedException {
+		if (!canBisect())
+			return Collections.emptyList();
+
+		String effectiveBad = effectiveBad();
+		if (effectiveBad == null)
+			return Collections.emptyList();
+
+		List<String> candidates = loadedGraph().candidates(effectiveBad, goods);
+		candidates.remove(effectiveBad);
+		candidates.removeAll(skipped);
+		return candidates;
+	}
+
+	@Override
+	public CandidateWeights candidateWeights() throws IOException, InterruptedException {
+		String effectiveBad = canBisect() ? effectiveBad() : null;
+		if (effectiveBad == null)
+			return new CandidateWeights(new LinkedHashMap<>(), skipped);
+		return loadedGraph().weights(effectiveBad, goods, skipped);
+	}
+
+	@Override
+	public String nextProbeAssuming(String commit, CommitState state) throws IOException, InterruptedException {
+		if (!canBisect())
+			return null;
+
+		if (state == CommitState.Bad)
+			return loadedGraph().midpoint(commit, goods, skipped);
+
+		String effectiveBad = effectiveBad();
+		if (effectiveBad == null)
+			return null;
+
+		LinkedHashSet<String> assumedGoods = new LinkedHashSet<>(goods);
+		assumedGoods.add(commit);
+		return loadedGraph().midpoint(effectiveBad, assumedGoods, skipped);
+	}
+
+	private BisectionResult nextStep() throws IOException, InterruptedException {
+		if (!canBisect())
+			return new BisectionResult(null, false);
+
+		String effectiveBad = effectiveBad();
+		if (effectiveBad == null)
+			effectiveBad = bad;
+		else
+		{
+			String nextCommit = loadedGraph().midpoint(effectiveBad, goods, skipped);
+			if (nextCommit != null)
+				return new BisectionResult(nextCommit, false);
+			
+			List<String> suspects = loadedGraph().candidates(effectiveBad, goods);
+			suspects.retainAll(skipped);
+			if (!suspects.isEmpty())
+			{
+				suspects.add(0, effectiveBad);
+				logger.log("Only skipped revisions are left, the first bad commit could be any of - " + suspects);
+				return new BisectionResult(String.join(" ", suspects), true);
+			}
+		}
+
+		return new BisectionResult(effectiveBad, true);
+	}
+
+	/**
+	 * The bad revision itself may not touch the pathspecs, in that case 
+	 * the newest commit below it that does behaves the same and takes its place.
+	 * @return null if no commit of the range touches the pathspecs
+	 */
+	private String effectiveBad() throws IOException, InterruptedException {
+		CommitGraph loaded = loadedGraph();
+		return loaded.contains(bad) ? bad : loaded.head();
+	}
+
+	private boolean canBisect() {
+		return bad != null && !goods.isEmpty();
+	}
+
+	private CommitGraph loadedGraph() throws IOException, InterruptedException {
+		if (graph == null || (!graph.contains(bad) && !bad.equals(graphLoadedFor)))
+		{
+			logger.log("Loading the commit graph between " + goods + " and " + bad);
+			graph = workspace.act(new CommitGraph.Loader(bad, goods, pathspecs, firstParent));
+			graphLoadedFor = bad;
+			logger.log("Loaded " + graph.size() + " commits");
+		}
+		return graph;
+	}
+
+	private String resolve(String commit) throws IOException, InterruptedException {
+		if (graph != null && graph.contains(commit))
+			return commit;
+
+		HashMap<String, String> resolved = workspace.act(new CommitGraph.Resolver(Collections.singletonList(commit)));
+		return resolved.get(commit);
+	}
+}
@@ -0,0 +1,153 @@
+package git.bisect.builder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import git.bisect.Logger;
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+import hudson.model.Computer;
+import hudson.model.InvisibleAction;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+import jenkins.model.Jenkins;
+
+/**
+ * Prefers to build a revision on the node that built the nearest revision tested so far,
+ * consecutive probes are close in history so that node can usually build incrementally from its warm workspace.
+ * A downstream build waits for that node for a while, and then takes any node.
+ * The nearest built revision is passed to the downstream build as {@value #NEAREST_BUILT_COMMIT}.
+ * Only freestyle-like downstream builds record their node, a Pipeline may run on several.
+ */
+public class NodeAffinity {
+	public static final String NEAREST_BUILT_COMMIT = "BISECT_NEAREST_BUILT_COMMIT";
+	// Only the latest builds are measured against, each costs a git command
+	private static final int MAX_MEASURED_BUILDS = 20;
+
+	private final BisectEngine engine;
+	private final Map<String, String> builtOn;
+	private final String revisionParameterName;
+	private final long waitMillis;
+	private final Logger logger;
+
+	/**
+	 * @param builtOn the node that built each tested revision, updated as downstream builds complete
+	 */
+	public NodeAffinity(BisectEngine engine, Map<String, String> builtOn, String revisionParameterName,
+						long waitMillis, Logger logger) {
+		this.engine = engine;
+		this.builtOn = builtOn;
+		this.revisionParameterName = revisionParameterName;
+		this.waitMillis = waitMillis;
+		this.logger = logger;
+	}
+
+	/**
+	 * Attached to a queued downstream build that should run on the node of its nearest built revision
+	 */
+	public static class PreferredNode extends InvisibleAction {
+		final String nodeName;
+		final String nearestBuiltCommit;
+		final long until;
+
+		PreferredNode(String nodeName, String nearestBuiltCommit, long until) {
+			this.nodeName = nodeName;
+			this.nearestBuiltCommit = nearestBuiltCommit;
+			this.until = until;
+		}
+	}
+
+	/**
+	 * Adds the nearest built revision to the parameters of a downstream build, and the node preference to its actions
+	 * @return the parameters of the build
+	 */
+	HashMap<String, String> prefer(HashMap<String, String> bisectParameters, List<Action> actions) {
+		String commit = bisectParameters.get(revisionParameterName);
+		String nearest;
+		try {
+			nearest = commit == null ? null : nearestBuilt(commit);
+		} catch (IOException e) {
+			logger.log("Could not find the nearest built revision of " + commit + " - " + e.getMessage());
+			return bisectParameters;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return bisectParameters;
+		}
+		if (nearest == null)
+			return bisectParameters;
+
+		String nodeName = builtOn.get(nearest);
+		logger.log("Preferring " + (nodeName.isEmpty() ? "the built-in node" : "node '" + nodeName + "'") +
+				   " for " + commit + " for up to " + waitMillis / 1000 + "s, it built the nearby revision " + nearest);
+		actions.add(new PreferredNode(nodeName, nearest, System.currentTimeMillis() + waitMillis));
+
+		HashMap<String, String> parameters = new HashMap<>(bisectParameters);
+		parameters.put(NEAREST_BUILT_COMMIT, nearest);
+		return parameters;
+	}
+
+	private String nearestBuilt(String commit) throws IOException, InterruptedException {
+		List<String> built = new ArrayList<>(builtOn.keySet());
+		String nearest = null;
+		int nearestDistance = Integer.MAX_VALUE;
+		for (String candidate : built.subList(Math.max(0, built.size() - MAX_MEASURED_BUILDS), built.size()))
+		{
+			if (candidate.equals(commit))
+				return candidate;
+
+			int distance = engine.distanceBetween(commit, candidate);
+			if (distance < nearestDistance)
+			{
+				nearest = candidate;
+				nearestDistance = distance;
+			}
+		}
+		return nearest;
+	}
+
+	/**
+	 * Remembers the node a completed downstream build ran on, the latest build of a revision is kept last
+	 */
+	void recordBuild(Run<?, ?> downstreamBuild) {
+		String commit = CommitTester.revisionOf(downstreamBuild, revisionParameterName);
+		if (commit == null || !(downstreamBuild instanceof AbstractBuild))
+			return;
+
+		builtOn.remove(commit);
+		builtOn.put(commit, ((AbstractBuild<?, ?>) downstreamBuild).getBuiltOnStr());
+	}
+
+	/**
+	 * Keeps other nodes from taking a downstream build that prefers a node, until its wait is over.
+	 * Nothing is held back for a node that is gone, offline or can't run the build anyway.
+	 */
+	@Extension
+	public static class Dispatcher extends QueueTaskDispatcher {
+		@Override
+		public CauseOfBlockage canTake(Node node, Queue.BuildableItem item) {
+			PreferredNode preferred = item.getAction(PreferredNode.class);
+			if (preferred == null || System.currentTimeMillis() > preferred.until ||
+				preferred.nodeName.equals(node.getNodeName()))
+				return null;
+
+			Node preferredNode = preferred.nodeName.isEmpty() ? Jenkins.get() : Jenkins.get().getNode(preferred.nodeName);
+			Computer computer = preferredNode == null ? null : preferredNode.toComputer();
+			if (computer == null || computer.isOffline() || preferredNode.canTake(item) != null)
+				return null;
+
+			return new CauseOfBlockage() {
+				@Override
+				public String getShortDescription() {
+					return "Waiting for " + computer.getDisplayName() + ", it built the nearby revision " + preferred.nearestBuiltCommit;
+				}
+			};
+		}
+	}
+}
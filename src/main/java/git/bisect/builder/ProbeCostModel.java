@@ -0,0 +1,61 @@
+package git.bisect.builder;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Estimates how long testing a revision takes, so the search can prefer cheap revisions
+ * over the exact midpoint when they split the range nearly as well.
+ */
+public interface ProbeCostModel {
+	/**
+	 * @param candidates the revisions that may still be the first bad commit, newest first
+	 * @return the estimated duration in milliseconds of a single build of each candidate
+	 */
+	Map<String, Long> estimate(List<String> candidates) throws IOException, InterruptedException;
+
+	/**
+	 * Lets the model learn from the duration a build of <code>commit</code> actually took.
+	 */
+	default void recordActual(String commit, long millis) {
+	}
+
+	/**
+	 * Picks the candidate with the lowest expected total cost of the search:
+	 * its own cost plus the cost of the steps still needed after it.
+	 * The remaining steps are approximated by log2 of the candidates left on each side,
+	 * each costing the average candidate, weighted by the chance of landing on that side.
+	 * With equal costs this is the regular midpoint.
+	 * @param costs the cost of every testable candidate, see {@link CandidateWeights#testable()}
+	 * @return null if no candidate can be tested
+	 */
+	static String cheapestProbe(CandidateWeights weights, Map<String, Long> costs) {
+		List<String> candidates = weights.testable();
+		double averageCost = 0;
+		for (String candidate : candidates)
+			averageCost += costs.get(candidate);
+		averageCost /= candidates.size();
+
+		String cheapest = null;
+		double cheapestCost = Double.MAX_VALUE;
+		for (String candidate : candidates)
+		{
+			// Testing a candidate leaves its weight in options if it is bad, and the other candidates if it is good
+			double ifBad = weights.weightOf(candidate);
+			double ifGood = weights.total() - ifBad;
+			double remainingSteps = (ifBad * log2(ifBad) + ifGood * log2(ifGood)) / weights.total();
+			double expectedCost = costs.get(candidate) + averageCost * remainingSteps;
+			if (expectedCost < cheapestCost)
+			{
+				cheapestCost = expectedCost;
+				cheapest = candidate;
+			}
+		}
+		return cheapest;
+	}
+
+	static double log2(double value) {
+		return Math.log(value) / Math.log(2);
+	}
+}
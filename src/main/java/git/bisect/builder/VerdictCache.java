@@ -0,0 +1,164 @@
+package git.bisect.builder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import git.bisect.builder.CommandsRunner.CommitState;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.XmlFile;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * Remembers the verdicts of tested revisions across searches, on the controller.
+ * Entries are keyed by the downstream job, the tree of the revision and the parameters of the downstream build,
+ * so a rebased commit with the same content is not tested again.
+ * The least recently used entries are evicted once the cache is full.
+ * Verdicts are written to disk a few seconds after they are added, together with the others added meanwhile,
+ * a verdict that is lost in a crash is only tested again.
+ *
+ * Entries can be dropped with a POST to JENKINS_URL/git-bisect-verdicts/clear (optionally with ?job=FULL_NAME).
+ */
+@Extension
+public class VerdictCache implements RootAction {
+	private static final Logger LOGGER = Logger.getLogger(VerdictCache.class.getName());
+	private static final int MAX_ENTRIES = Integer.getInteger(VerdictCache.class.getName() + ".maxEntries", 10000);
+	private static final long SAVE_DELAY_SECONDS = 5;
+
+	private transient LinkedHashMap<String, CommitState> verdicts;
+	private transient boolean saveScheduled;
+	// Writes of the cache file happen one at a time, without holding the lock of the cache
+	private final transient Object fileLock = new Object();
+
+	public static VerdictCache get() {
+		return ExtensionList.lookupSingleton(VerdictCache.class);
+	}
+
+	public static String keyOf(String jobFullName, String tree, SortedMap<String, String> parameters) {
+		return jobFullName + "\n" + tree + "\n" + parameters;
+	}
+
+	/**
+	 * @return the cached verdict, or null if this tree was never tested with these parameters
+	 */
+	public synchronized CommitState lookup(String key) {
+		return loaded().get(key);
+	}
+
+	public synchronized void put(String key, CommitState verdict) {
+		loaded().put(key, verdict);
+		scheduleSave();
+	}
+
+	public synchronized int size() {
+		return loaded().size();
+	}
+
+	/**
+	 * Drops the verdicts of a single downstream job, or all of them if no job is given.
+	 */
+	@RequirePOST
+	public synchronized HttpResponse doClear(@QueryParameter String job) {
+		Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+
+		int before = loaded().size();
+		if (job == null || job.isEmpty())
+			verdicts.clear();
+		else
+			verdicts.keySet().removeIf(key -> key.startsWith(job + "\n"));
+		scheduleSave();
+
+		return HttpResponses.text("Removed " + (before - verdicts.size()) + " cached verdicts\n");
+	}
+
+	@SuppressWarnings("unchecked")
+	private LinkedHashMap<String, CommitState> loaded() {
+		if (verdicts != null)
+			return verdicts;
+
+		verdicts = newVerdictsMap();
+		XmlFile file = cacheFile();
+		if (file.exists())
+		{
+			try {
+				verdicts.putAll((Map<String, CommitState>) file.read());
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Could not read the git bisect verdict cache, starting with an empty one", e);
+			}
+		}
+		return verdicts;
+	}
+
+	/**
+	 * Must be called holding the lock
+	 */
+	private void scheduleSave() {
+		if (saveScheduled)
+			return;
+
+		saveScheduled = true;
+		Timer.get().schedule(this::save, SAVE_DELAY_SECONDS, TimeUnit.SECONDS);
+	}
+
+	private void save() {
+		synchronized (fileLock)
+		{
+			LinkedHashMap<String, CommitState> snapshot;
+			synchronized (this)
+			{
+				saveScheduled = false;
+				snapshot = new LinkedHashMap<>(verdicts);
+			}
+
+			try {
+				cacheFile().write(snapshot);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Could not save the git bisect verdict cache", e);
+			}
+		}
+	}
+
+	private static LinkedHashMap<String, CommitState> newVerdictsMap() {
+		return new LinkedHashMap<String, CommitState>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CommitState> eldest) {
+				return size() > MAX_ENTRIES;
+			}
+		};
+	}
+
+	private static XmlFile cacheFile() {
+		return new XmlFile(Jenkins.XSTREAM2, new File(Jenkins.get().getRootDir(), "git-bisect-verdicts.xml"));
+	}
+
+	// The cache is only cleared with a POST, a sidebar link would lead nowhere
+	@Override
+	public String getIconFileName() {
+		return null;
+	}
+
+	@Override
+	public String getDisplayName() {
+		return "Git Bisect Verdicts";
+	}
+
+	@Override
+	public String getUrlName() {
+		return "git-bisect-verdicts";
+	}
+}
@@ -0,0 +1,332 @@
+package git.bisect.on_failure;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import git.bisect.CommitPair;
+import git.bisect.builder.BisectEngine;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.XmlFile;
+import jenkins.model.Jenkins;
+
+/**
+ * The searches started after failures that are still running, by job.
+ * Several builds usually fail because of the same commit, a failure whose range is covered by a running search
+ * joins that search instead of starting a chain of builds of its own,
+ * and regular builds of commits inside the range of a search narrow it.
+ * A search that made no progress for a while (for example because its chain of builds was aborted) is forgotten.
+ *
+ * Deciding how a failure relates to the running searches takes git commands, they run on a copy of the searches
+ * without holding the lock. The decision is only applied if no search of the job changed meanwhile, otherwise it is made again.
+ */
+@Extension
+public class ActiveSearches {
+	private static final Logger LOGGER = Logger.getLogger(ActiveSearches.class.getName());
+	private static final long STALE_AFTER_MILLIS = TimeUnit.HOURS.toMillis(
+			Integer.getInteger(ActiveSearches.class.getName() + ".staleAfterHours", 24));
+
+	private transient HashMap<String, List<Search>> searchesByJob;
+	private final transient File file;
+
+	public ActiveSearches() {
+		this(null);
+	}
+
+	/**
+	 * @param file where the searches are kept, or null for the file in the Jenkins home directory
+	 */
+	ActiveSearches(File file) {
+		this.file = file;
+	}
+
+	public static class Search {
+		public final String id;
+		public final String startedBy;
+		String goodCommit;
+		String badCommit;
+		long lastProgress;
+		final List<String> joinedBuilds = new ArrayList<>();
+
+		Search(String startedBy, CommitPair range) {
+			this(UUID.randomUUID().toString(), startedBy);
+			update(range);
+		}
+
+		private Search(String id, String startedBy) {
+			this.id = id;
+			this.startedBy = startedBy;
+		}
+
+		void update(CommitPair range) {
+			goodCommit = range.goodCommit;
+			badCommit = range.badCommit;
+			lastProgress = System.currentTimeMillis();
+		}
+
+		public CommitPair getRange() {
+			return new CommitPair(goodCommit, badCommit);
+		}
+
+		/**
+		 * The builds whose failures joined this search after it was started
+		 */
+		public List<String> getJoinedBuilds() {
+			return joinedBuilds;
+		}
+
+		Search copy() {
+			Search copy = new Search(id, startedBy);
+			copy.goodCommit = goodCommit;
+			copy.badCommit = badCommit;
+			copy.lastProgress = lastProgress;
+			copy.joinedBuilds.addAll(joinedBuilds);
+			return copy;
+		}
+
+		boolean sameRange(Search other) {
+			return id.equals(other.id) && goodCommit.equals(other.goodCommit) && badCommit.equals(other.badCommit);
+		}
+	}
+
+	public static ActiveSearches get() {
+		return ExtensionList.lookupSingleton(ActiveSearches.class);
+	}
+
+	/**
+	 * Finds a running search of the job that covers the failure of <code>build</code> in <code>range</code>.
+	 * Only a search whose range overlaps the range of the failure can cover it,
+	 * the good commit of the failure has to be an ancestor of the bad commit of the search.
+	 * A search whose bad commit is an ancestor of the failed commit then already searches for the commit that broke it,
+	 * and a failed commit inside the range of a search narrows that search to it.
+	 * If no search covers the failure, a new one is registered.
+	 * @return a copy of the search the failure joined, or of the new search (started by <code>build</code>)
+	 */
+	public Search joinOrStart(String job, String build, CommitPair range, BisectEngine engine) throws IOException, InterruptedException {
+		while (true)
+		{
+			List<Search> snapshot = snapshotOf(job);
+			Search covering = null;
+			boolean narrows = false;
+			for (Search search : snapshot)
+			{
+				if (!engine.isAncestor(range.goodCommit, search.badCommit))
+					continue;
+
+				if (engine.isAncestor(search.badCommit, range.badCommit))
+				{
+					covering = search;
+					break;
+				}
+				if (engine.isAncestor(search.goodCommit, range.badCommit) &&
+					engine.isAncestor(range.badCommit, search.badCommit))
+				{
+					covering = search;
+					narrows = true;
+					break;
+				}
+			}
+
+			synchronized (this)
+			{
+				if (!unchanged(job, snapshot))
+					continue;
+
+				if (covering == null)
+				{
+					Search search = new Search(build, range);
+					searchesOf(job).add(search);
+					save();
+					return search.copy();
+				}
+
+				Search search = find(job, covering.id);
+				search.joinedBuilds.add(build);
+				if (narrows)
+					search.badCommit = range.badCommit;
+				save();
+				return search.copy();
+			}
+		}
+	}
+
+	/**
+	 * @return a copy of the search, or null if it is not running (any more)
+	 */
+	public synchronized Search lookup(String job, String id) {
+		Search search = find(job, id);
+		return search == null ? null : search.copy();
+	}
+
+	/**
+	 * A passing build of a commit inside the range of a search raises its good bound.
+	 * @param commit the passing commit, or null if the build doesn't know which commit it built
+	 * @return copies of the searches that were narrowed
+	 */
+	public List<Search> markGood(String job, String commit, BisectEngine engine) throws IOException, InterruptedException {
+		if (commit == null)
+			return new ArrayList<>();
+
+		while (true)
+		{
+			List<Search> snapshot = snapshotOf(job);
+			List<String> narrowedIds = new ArrayList<>();
+			for (Search search : snapshot)
+			{
+				if (commit.equals(search.goodCommit) || commit.equals(search.badCommit))
+					continue;
+
+				if (engine.isAncestor(search.goodCommit, commit) && engine.isAncestor(commit, search.badCommit))
+					narrowedIds.add(search.id);
+			}
+
+			synchronized (this)
+			{
+				if (!unchanged(job, snapshot))
+					continue;
+
+				List<Search> narrowed = new ArrayList<>();
+				for (String id : narrowedIds)
+				{
+					Search search = find(job, id);
+					search.goodCommit = commit;
+					narrowed.add(search.copy());
+				}
+
+				if (!narrowed.isEmpty())
+					save();
+				return narrowed;
+			}
+		}
+	}
+
+	/**
+	 * Records the range a search continues with,
+	 * narrower bounds set by other builds since the step started are kept.
+	 */
+	public void update(String job, String id, CommitPair range, BisectEngine engine) throws IOException, InterruptedException {
+		while (true)
+		{
+			Search snapshot = lookup(job, id);
+			if (snapshot == null)
+				return;
+
+			boolean keepBad = !snapshot.badCommit.equals(range.badCommit) && engine.isAncestor(snapshot.badCommit, range.badCommit);
+			boolean keepGood = !snapshot.goodCommit.equals(range.goodCommit) && engine.isAncestor(range.goodCommit, snapshot.goodCommit);
+
+			synchronized (this)
+			{
+				Search search = find(job, id);
+				if (search == null)
+					return;
+				if (!search.sameRange(snapshot))
+					continue;
+
+				search.update(range);
+				if (keepBad)
+					search.badCommit = snapshot.badCommit;
+				if (keepGood)
+					search.goodCommit = snapshot.goodCommit;
+				save();
+				return;
+			}
+		}
+	}
+
+	public synchronized void finish(String job, String id) {
+		List<Search> searches = loaded().get(job);
+		if (searches == null || !searches.removeIf(search -> search.id.equals(id)))
+			return;
+
+		if (searches.isEmpty())
+			searchesByJob.remove(job);
+		save();
+	}
+
+	/**
+	 * Copies the running searches of the job, searches that made no progress for a while are dropped first
+	 */
+	private synchronized List<Search> snapshotOf(String job) {
+		List<Search> searches = loaded().get(job);
+		if (searches == null)
+			return new ArrayList<>();
+
+		if (searches.removeIf(search -> System.currentTimeMillis() - search.lastProgress > STALE_AFTER_MILLIS))
+		{
+			if (searches.isEmpty())
+				searchesByJob.remove(job);
+			save();
+		}
+
+		List<Search> snapshot = new ArrayList<>();
+		for (Search search : searches)
+			snapshot.add(search.copy());
+		return snapshot;
+	}
+
+	/**
+	 * Must be called holding the lock
+	 */
+	private boolean unchanged(String job, List<Search> snapshot) {
+		List<Search> searches = loaded().getOrDefault(job, new ArrayList<>());
+		if (searches.size() != snapshot.size())
+			return false;
+
+		for (int i = 0; i < searches.size(); i++)
+			if (!searches.get(i).sameRange(snapshot.get(i)))
+				return false;
+		return true;
+	}
+
+	private Search find(String job, String id) {
+		for (Search search : loaded().getOrDefault(job, new ArrayList<>()))
+			if (search.id.equals(id))
+				return search;
+		return null;
+	}
+
+	private List<Search> searchesOf(String job) {
+		return loaded().computeIfAbsent(job, key -> new ArrayList<>());
+	}
+
+	@SuppressWarnings("unchecked")
+	private HashMap<String, List<Search>> loaded() {
+		if (searchesByJob != null)
+			return searchesByJob;
+
+		searchesByJob = new HashMap<>();
+		XmlFile searchesFile = searchesFile();
+		if (searchesFile.exists())
+		{
+			try {
+				searchesByJob.putAll((Map<String, List<Search>>) searchesFile.read());
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Could not read the running git bisect searches", e);
+			}
+		}
+		// Files saved before empty jobs were dropped may still have them
+		searchesByJob.values().removeIf(List::isEmpty);
+		return searchesByJob;
+	}
+
+	private void save() {
+		try {
+			searchesFile().write(new HashMap<>(searchesByJob));
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not save the running git bisect searches", e);
+		}
+	}
+
+	private XmlFile searchesFile() {
+		File searches = file != null ? file : new File(Jenkins.get().getRootDir(), "git-bisect-on-failure.xml");
+		return new XmlFile(Jenkins.XSTREAM2, searches);
+	}
+}
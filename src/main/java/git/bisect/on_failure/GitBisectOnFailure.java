@@ -1,11 +1,17 @@
 package git.bisect.on_failure;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 import git.bisect.CommitPair;
 import git.bisect.Logger;
+import git.bisect.builder.BisectEngine;
+import git.bisect.builder.BisectMetrics;
 import git.bisect.builder.CommandsRunner;
 import git.bisect.builder.CommandsRunner.BisectionResult;
 import git.bisect.builder.CommandsRunner.CommitState;
@@ -31,15 +37,23 @@ public class GitBisectOnFailure extends Notifier implements SimpleBuildStep {
 	private static final String BISECT_BAD_COMMIT = "BISECT_BAD_COMMIT";
 	private static final String BISECT_GOOD_COMMIT = "BISECT_GOOD_COMMIT";
 	private static final String BISECT_IDENTIFIER = "BISECT_INTERNAL_SEARCH_IDENTIFIER";
+	// Searches started before they were registered in ActiveSearches
+	private static final String LEGACY_SEARCH_IDENTIFIER = "TRUE";
 
 	transient private Run<?, ?> build;
 	transient private EnvVars env;
 	transient private CommitTester commitTester;
 	transient private CommandsRunner cmd;
+	transient private String job;
+	transient private String searchId;
+	transient private Logger logger;
 	
 	private String gitCommand;
 	private String revisionParameterName;
 	private boolean overrideGitCommand;
+	private String pathspecs;
+	private boolean verboseLogging;
+	private boolean deepenShallowClones;
 
 	
 	@DataBoundConstructor
@@ -60,6 +74,33 @@ public class GitBisectOnFailure extends Notifier implements SimpleBuildStep {
 	public String getGitCommand() {
 		return gitCommand;
 	}
+	
+	@DataBoundSetter
+	public void setPathspecs(String pathspecs) {
+		this.pathspecs = pathspecs;
+	}
+	
+	public String getPathspecs() {
+		return pathspecs;
+	}
+	
+	@DataBoundSetter
+	public void setVerboseLogging(boolean verboseLogging) {
+		this.verboseLogging = verboseLogging;
+	}
+	
+	public boolean getVerboseLogging() {
+		return verboseLogging;
+	}
+	
+	@DataBoundSetter
+	public void setDeepenShallowClones(boolean deepenShallowClones) {
+		this.deepenShallowClones = deepenShallowClones;
+	}
+	
+	public boolean getDeepenShallowClones() {
+		return deepenShallowClones;
+	}
     
 	@Override
     public void perform(Run<?, ?> build, FilePath workspace, Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
@@ -68,35 +109,102 @@ public class GitBisectOnFailure extends Notifier implements SimpleBuildStep {
 		try
 		{
 			this.build = build;
+			this.job = build.getParent().getFullName();
+			this.searchId = null;
 			
-			Logger.initializeLogger(listener);
+			logger = Logger.of(listener, verboseLogging);
 			env = build.getEnvironment(listener);
 			
-			commitTester = new CommitTester(build, build.getParent());
-			cmd = new CommandsRunner(build, workspace, launcher, listener, gitCommand);
+			commitTester = new CommitTester(build, build.getParent(), logger);
+			cmd = new CommandsRunner(build, workspace, launcher, logger, gitCommand);
+			cmd.setPathspecs(BisectEngine.pathspecsOf(envVars.expand(pathspecs)));
 			
 			performBisection();
 		}
 		catch (Exception e)
 		{
-			Logger.log("Git bisection failed due to an exception");
-			Logger.printStackTrace(e);
+			logger.log("Git bisection failed due to an exception");
+			logger.printStackTrace(e);
+			// The chain of builds is broken, later failures should not join this search
+			if (searchId != null)
+				ActiveSearches.get().finish(job, searchId);
+		}
+		finally
+		{
+			logger.flush();
 		}
     }
 
 	private void performBisection() throws IOException, InterruptedException {
+		// Only builds that take part in a search get metrics
+		if (currentlyBisecting() || currentCommitFailed())
+			cmd.setMetrics(BisectMetrics.of(build));
+		
 		if (currentlyBisecting()) 
 			continueBisection();
 		else if (currentCommitFailed())
 			startBisection();
+		else if (currentCommitPassed())
+			narrowActiveSearches();
+	}
+	
+	/**
+	 * A regular build of a commit inside the range of a running search narrows it, 
+	 * so the search doesn't spend builds on commits that can no longer be the first bad commit.
+	 */
+	private void narrowActiveSearches() throws IOException, InterruptedException {
+		for (ActiveSearches.Search search : ActiveSearches.get().markGood(job, currentCommit(), cmd))
+		{
+			logger.log("Revision " + currentCommit() + " passed inside the range of the search started by " + 
+					   search.startedBy + ", raising its good commit");
+			rescheduleStaleProbes(search);
+		}
+	}
+	
+	/**
+	 * Cancels the queued builds of a search whose revisions are outside its (narrowed) range, 
+	 * and schedules the next step in their place.
+	 */
+	private void rescheduleStaleProbes(ActiveSearches.Search search) throws IOException, InterruptedException {
+		CommitPair range = search.getRange();
+		HashMap<Long, String> queued = commitTester.queuedRevisions(BISECT_IDENTIFIER, search.id, revisionParameterName);
+		
+		List<Long> stale = new ArrayList<>();
+		for (Map.Entry<Long, String> queuedBuild : queued.entrySet())
+			if (!insideRange(range, queuedBuild.getValue()))
+				stale.add(queuedBuild.getKey());
+		
+		if (stale.isEmpty())
+			return;
+		
+		commitTester.cancelQueued(stale);
+		logger.log("Cancelled " + stale.size() + " queued builds of revisions that are outside the narrowed range");
+		if (stale.size() < queued.size())
+			return;
+		
+		searchId = search.id;
+		runNextStep(initBisection(range), range);
+	}
+	
+	private boolean insideRange(CommitPair range, String commit) throws IOException, InterruptedException {
+		return cmd.isAncestor(range.goodCommit, commit) && cmd.isAncestor(commit, range.badCommit);
 	}
 
 	private void continueBisection() throws IOException, InterruptedException {
-		CommitPair previousCommits = new CommitPair(
+		searchId = env.get(BISECT_IDENTIFIER);
+		
+		// Other builds of the job may have narrowed the search since this build was scheduled
+		ActiveSearches.Search search = ActiveSearches.get().lookup(job, searchId);
+		if (search == null && !LEGACY_SEARCH_IDENTIFIER.equals(searchId))
+		{
+			logger.log("The search of this build already ended, not continuing it");
+			return;
+		}
+		CommitPair previousCommits = search != null ? search.getRange() : new CommitPair(
 											env.get(BISECT_GOOD_COMMIT), 
 											env.get(BISECT_BAD_COMMIT));
 
-		Logger.log("Continueing bisection with - good commit: " + 
+		logger.log("Continueing bisection with - good commit: " + 
 					previousCommits.goodCommit + ", and bad commit: " + 
 					previousCommits.badCommit);
 		
@@ -104,34 +212,51 @@ public class GitBisectOnFailure extends Notifier implements SimpleBuildStep {
 
 		if (result.isDone)
 		{
-			Logger.log("Found the first bad commit at - " + result.commit);
+			searchFinished(result.commit);
 			return;
 		}
 
+		if (!insideRange(previousCommits, currentCommit()))
+		{
+			logger.log("Revision " + currentCommit() + " is no longer inside the range of the search, " + 
+					   "another build of the job narrowed it");
+			runNextStep(result, previousCommits);
+			return;
+		}
+		
 		if (currentCommitFailed())
 			result = cmd.markCommitAs(currentCommit(), CommitState.Bad);
 		else
 			result = cmd.markCommitAs(currentCommit(), CommitState.Good);
 		
-		runNextStep(result, previousCommits);
+		runNextStep(result, getNextPair(previousCommits));
 	}
 
 	private String currentCommit() {
 		return env.get(GIT_COMMIT);
 	}
 
-	private void runNextStep(BisectionResult result, CommitPair prevResults) {
+	private void runNextStep(BisectionResult result, CommitPair nextPair) throws IOException, InterruptedException {
 		if (result.isDone)
 		{
-			Logger.log("Found the first bad commit at - " + result.commit);
+			searchFinished(result.commit);
 			return;
 		}
 		
-		Logger.log("Next commit to be tested - " + result.commit);
+		logger.log("Next commit to be tested - " + result.commit);
 		
-		CommitPair nextPair = getNextPair(prevResults);
+		ActiveSearches.get().update(job, searchId, nextPair, cmd);
 		commitTester.runRecursivly(withBisectParams(result, nextPair));
 	}
+	
+	private void searchFinished(String firstBadCommit) {
+		logger.log("Found the first bad commit at - " + firstBadCommit);
+		
+		ActiveSearches.Search search = ActiveSearches.get().lookup(job, searchId);
+		if (search != null && !search.getJoinedBuilds().isEmpty())
+			logger.log("It is also the first bad commit of the failures that joined the search - " + search.getJoinedBuilds());
+		ActiveSearches.get().finish(job, searchId);
+	}
 
 	
 	private CommitPair getNextPair(CommitPair prevResults) {
@@ -146,7 +271,7 @@ public class GitBisectOnFailure extends Notifier implements SimpleBuildStep {
 
 		if (startingStates.goodCommit == null)
 		{
-			Logger.error("Git bisection can't detect the previous good commit," + 
+			logger.error("Git bisection can't detect the previous good commit," + 
 						 " the environment variable" + GIT_PREV_GOOD + " did not exist... \n" + 
 						 "You may want to run the bisection using an external job, " + 
 						 "Sorry for wasting your time and resources :(");
@@ -154,11 +279,24 @@ public class GitBisectOnFailure extends Notifier implements SimpleBuildStep {
 			throw new RuntimeException();
 		}
 		
-		Logger.log("Starting bisection after failure with - good commit: " + 
+		logger.log("Starting bisection after failure with - good commit: " + 
 					startingStates.goodCommit + ", and bad commit: " + 
 					startingStates.badCommit);
 		
 		BisectionResult result = initBisection(startingStates);
+		
+		ActiveSearches.Search search = ActiveSearches.get().joinOrStart(job, build.getFullDisplayName(), startingStates, cmd);
+		if (!search.startedBy.equals(build.getFullDisplayName()))
+		{
+			logger.log("The failure is covered by the search started by " + search.startedBy + 
+					   " (good commit: " + search.getRange().goodCommit + ", bad commit: " + search.getRange().badCommit + 
+					   "), joining it instead of starting another one");
+			rescheduleStaleProbes(search);
+			return;
+		}
+		
+		searchId = search.id;
+		cmd.logPrunedCommits(BisectEngine.pathspecsOf(env.expand(pathspecs)));
 		runNextStep(result, startingStates);
 	}
 
@@ -167,6 +305,8 @@ public class GitBisectOnFailure extends Notifier implements SimpleBuildStep {
 	}
 	
 	private BisectionResult initBisection(CommitPair prevRunResult) throws IOException, InterruptedException {
+		if (deepenShallowClones)
+			cmd.fetchHistoryOf(prevRunResult);
 		validateCommits(prevRunResult);
 		cmd.resetBisection();
 		cmd.startBisection();
@@ -179,10 +319,7 @@ public class GitBisectOnFailure extends Notifier implements SimpleBuildStep {
 	}
 
 	private void validateCommits(CommitPair pair) throws IOException, InterruptedException {
-		boolean valid = cmd.checkExistance(pair.goodCommit) &&
-						cmd.checkExistance(pair.badCommit);
-		
-		if (valid == false)
+		if (!cmd.validRange(pair))
 			throw new RuntimeException("Can't start bisecting, can't query repository for relevant commits");
 	}
 
@@ -190,6 +327,10 @@ public class GitBisectOnFailure extends Notifier implements SimpleBuildStep {
 		return build.getResult() == Result.FAILURE;
 	}
 	
+	private boolean currentCommitPassed() {
+		return build.getResult() == Result.SUCCESS;
+	}
+	
 	@Override
     public DescriptorImpl getDescriptor() {
         return (DescriptorImpl) super.getDescriptor();
@@ -230,7 +371,7 @@ public class GitBisectOnFailure extends Notifier implements SimpleBuildStep {
 		bisectParams.put(revisionParameterName, result.commit);
 		bisectParams.put(BISECT_GOOD_COMMIT, knownCommits.goodCommit);
 		bisectParams.put(BISECT_BAD_COMMIT, knownCommits.badCommit);
-		bisectParams.put(BISECT_IDENTIFIER, "TRUE");
+		bisectParams.put(BISECT_IDENTIFIER, searchId);
 		return bisectParams;
 	}
 }
@@ -0,0 +1,163 @@
+package git.bisect.simulation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import git.bisect.builder.BisectMetrics;
+import git.bisect.builder.BisectMetricsAggregate;
+import git.bisect.builder.GitBisectBuilder;
+import git.bisect.on_failure.GitBisectOnFailure;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.ParametersAction;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.StringParameterDefinition;
+import hudson.model.StringParameterValue;
+
+/**
+ * Runs whole searches against a generated repository and a stand-in downstream job, and reports what they cost.
+ * Not part of the regular build, run it with <code>mvn -P simulation verify</code>, see {@link Scenario} for the settings.
+ * Without flaky builds every search must find the planted regression.
+ */
+public class BisectSimulation {
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private final Scenario scenario = new Scenario();
+	private ScenarioRepository repository;
+
+	@Before
+	public void generateRepository() throws IOException {
+		repository = ScenarioRepository.generate(temporaryFolder.newFolder("repository"), scenario);
+		j.jenkins.setNumExecutors(scenario.searches * 2 + 1);
+	}
+
+	@Test
+	public void gitBisectBuilder() throws Exception {
+		FakeDownstreamBuilder.BAD_COMMITS.put("builder", repository.badCommits);
+		FreeStyleProject downstream = j.createFreeStyleProject("downstream");
+		downstream.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("REVISION", "")));
+		downstream.setConcurrentBuild(true);
+		downstream.getBuildersList().add(new FakeDownstreamBuilder("builder", "REVISION", scenario));
+
+		List<FreeStyleProject> searches = new ArrayList<>();
+		for (int i = 0; i < scenario.searches; i++)
+		{
+			FreeStyleProject search = j.createFreeStyleProject("bisect-" + i);
+			search.setCustomWorkspace(repository.cloneTo(temporaryFolder.newFolder("bisect-" + i)).getAbsolutePath());
+			GitBisectBuilder builder = new GitBisectBuilder("downstream", repository.good(), repository.bad(), "search", 
+					"REVISION", scenario.retryCount, true, scenario.minSuccessfulIterations, false, "git");
+			builder.setUseJGitEngine(scenario.useJGitEngine);
+			builder.setReleaseExecutor(scenario.releaseExecutor);
+			search.getBuildersList().add(builder);
+			searches.add(search);
+		}
+
+		Measurement measurement = Measurement.start(j.jenkins.getRootDir());
+		for (FreeStyleProject search : searches)
+			search.scheduleBuild2(0);
+		waitForSearches();
+		measurement.stop();
+
+		int found = 0;
+		for (FreeStyleProject search : searches)
+		{
+			File asyncLog = new File(search.getRootDir(), "search.log");
+			String logs = logsOf(search);
+			if (asyncLog.exists())
+				logs += new String(Files.readAllBytes(asyncLog.toPath()), StandardCharsets.UTF_8);
+			if (logs.contains("wanted revision is - " + repository.regression))
+				found++;
+		}
+		report("GitBisectBuilder", searches, downstream.getBuilds().size(), found, measurement);
+	}
+
+	@Test
+	public void gitBisectOnFailure() throws Exception {
+		FakeDownstreamBuilder.BAD_COMMITS.put("onFailure", repository.badCommits);
+		List<FreeStyleProject> nightlies = new ArrayList<>();
+		for (int i = 0; i < scenario.searches; i++)
+		{
+			// The nightly job tests its own revisions, its bisect builds get the probed revision as GIT_COMMIT
+			FreeStyleProject nightly = j.createFreeStyleProject("nightly-" + i);
+			nightly.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("GIT_COMMIT", ""), 
+					new StringParameterDefinition("GIT_PREVIOUS_SUCCESSFUL_COMMIT", "")));
+			nightly.setCustomWorkspace(repository.cloneTo(temporaryFolder.newFolder("nightly-" + i)).getAbsolutePath());
+			nightly.getBuildersList().add(new FakeDownstreamBuilder("onFailure", "GIT_COMMIT", scenario));
+			nightly.getPublishersList().add(new GitBisectOnFailure("git", "GIT_COMMIT", false));
+			nightlies.add(nightly);
+		}
+
+		Measurement measurement = Measurement.start(j.jenkins.getRootDir());
+		for (FreeStyleProject nightly : nightlies)
+			nightly.scheduleBuild2(0, new ParametersAction(new StringParameterValue("GIT_COMMIT", repository.bad()), 
+					new StringParameterValue("GIT_PREVIOUS_SUCCESSFUL_COMMIT", repository.good())));
+		waitForSearches();
+		measurement.stop();
+
+		int builds = 0;
+		int found = 0;
+		for (FreeStyleProject nightly : nightlies)
+		{
+			builds += nightly.getBuilds().size();
+			if (logsOf(nightly).contains("Found the first bad commit at - " + repository.regression))
+				found++;
+		}
+		report("GitBisectOnFailure", nightlies, builds, found, measurement);
+	}
+
+	/**
+	 * Searches that released their executor take their next step after their downstream build is done,
+	 * so an empty queue alone doesn't mean they are done.
+	 */
+	private void waitForSearches() throws Exception {
+		long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(scenario.timeoutMinutes);
+		do {
+			j.waitUntilNoActivityUpTo((int) Math.max(1, deadline - System.currentTimeMillis()));
+			Thread.sleep(100);
+			if (System.currentTimeMillis() > deadline)
+				throw new AssertionError("The searches did not finish in " + scenario.timeoutMinutes + " minutes");
+		} while (BisectMetricsAggregate.get().getActiveSearches() > 0 || !j.jenkins.getQueue().isEmpty());
+	}
+
+	private static String logsOf(FreeStyleProject project) throws IOException {
+		StringBuilder logs = new StringBuilder();
+		for (FreeStyleBuild build : project.getBuilds())
+			logs.append(JenkinsRule.getLog(build));
+		return logs.toString();
+	}
+
+	private void report(String name, List<FreeStyleProject> searches, int builds, int found, Measurement measurement) {
+		int gitCommands = 0;
+		for (FreeStyleProject search : searches)
+			for (FreeStyleBuild build : search.getBuilds())
+			{
+				BisectMetrics metrics = build.getAction(BisectMetrics.class);
+				if (metrics != null)
+					gitCommands += metrics.getGitCommands();
+			}
+
+		System.out.println("[simulation] " + name + " - " + scenario);
+		System.out.println("[simulation]   " + measurement.report());
+		System.out.println("[simulation]   " + builds + " builds scheduled, " + gitCommands + " git invocations, " + 
+						   found + " of " + searches.size() + " searches found the regression");
+
+		if (scenario.flakeRate == 0)
+			assertEquals("Without flaky builds every search should find the regression", searches.size(), found);
+	}
+}
@@ -0,0 +1,54 @@
+package git.bisect.simulation;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jvnet.hudson.test.TestBuilder;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+
+/**
+ * Stands in for the tests of a downstream job, it takes a while and fails for revisions that contain the regression.
+ * Good revisions fail now and then as well, the same build number always flakes the same way.
+ */
+public class FakeDownstreamBuilder extends TestBuilder {
+	/** The bad commits by scenario, kept out of the job configuration so saving it doesn't skew the measured I/O */
+	static final Map<String, Set<String>> BAD_COMMITS = new ConcurrentHashMap<>();
+
+	private final String scenario;
+	private final String revisionParameterName;
+	private final long buildMillis;
+	private final double flakeRate;
+	private final long seed;
+
+	FakeDownstreamBuilder(String scenario, String revisionParameterName, Scenario settings) {
+		this.scenario = scenario;
+		this.revisionParameterName = revisionParameterName;
+		this.buildMillis = settings.buildMillis;
+		this.flakeRate = settings.flakeRate;
+		this.seed = settings.seed;
+	}
+
+	@Override
+	public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+		String revision = build.getEnvironment(listener).get(revisionParameterName);
+		Thread.sleep(buildMillis);
+
+		if (BAD_COMMITS.get(scenario).contains(revision))
+		{
+			listener.getLogger().println("Revision " + revision + " contains the regression");
+			return false;
+		}
+		if (new Random(seed * 31 + build.getNumber()).nextDouble() < flakeRate)
+		{
+			listener.getLogger().println("Revision " + revision + " is good, but the build flaked");
+			return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,79 @@
+package git.bisect.simulation;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * What a scenario cost the controller, measured from when it is started until it is stopped.
+ * Controller I/O is the growth of JENKINS_HOME, and where /proc/self/io exists (Linux) also the bytes
+ * the controller process read and wrote, which includes build logs but not the git processes it started.
+ */
+final class Measurement {
+	private final File jenkinsHome;
+	private final long startNanos;
+	private final long startHomeBytes;
+	private final long[] startIo;
+	private long wallClockMillis;
+	private long homeBytes;
+	private long[] io;
+
+	private Measurement(File jenkinsHome) throws IOException {
+		this.jenkinsHome = jenkinsHome;
+		this.startHomeBytes = sizeOf(jenkinsHome);
+		this.startIo = processIo();
+		this.startNanos = System.nanoTime();
+	}
+
+	static Measurement start(File jenkinsHome) throws IOException {
+		return new Measurement(jenkinsHome);
+	}
+
+	void stop() throws IOException {
+		wallClockMillis = (System.nanoTime() - startNanos) / 1_000_000;
+		homeBytes = sizeOf(jenkinsHome) - startHomeBytes;
+		long[] endIo = processIo();
+		if (startIo != null && endIo != null)
+			io = new long[] { endIo[0] - startIo[0], endIo[1] - startIo[1] };
+	}
+
+	String report() {
+		return "wall-clock " + wallClockMillis + "ms, JENKINS_HOME grew by " + homeBytes + " bytes" + 
+			   (io == null ? "" : ", the controller read " + io[0] + " and wrote " + io[1] + " bytes");
+	}
+
+	private static long sizeOf(File directory) throws IOException {
+		try (Stream<Path> files = Files.walk(directory.toPath()))
+		{
+			return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+		}
+	}
+
+	/**
+	 * @return the bytes read and written by the controller process, or null if they are not available
+	 */
+	private static long[] processIo() {
+		File io = new File("/proc/self/io");
+		if (!io.canRead())
+			return null;
+
+		try {
+			long[] readAndWritten = new long[2];
+			List<String> lines = Files.readAllLines(io.toPath(), StandardCharsets.US_ASCII);
+			for (String line : lines)
+			{
+				if (line.startsWith("rchar:"))
+					readAndWritten[0] = Long.parseLong(line.substring("rchar:".length()).trim());
+				else if (line.startsWith("wchar:"))
+					readAndWritten[1] = Long.parseLong(line.substring("wchar:".length()).trim());
+			}
+			return readAndWritten;
+		} catch (IOException | NumberFormatException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package git.bisect.simulation;
+
+/**
+ * What the simulation runs, set with system properties, for example
+ * <code>mvn -P simulation verify -Dsimulation.commits=100000 -Dsimulation.searches=24</code>
+ */
+final class Scenario {
+	enum Shape {
+		/** Every commit has a single parent */
+		LINEAR,
+		/** Every fifth commit merges a branch of three commits, forked from the previous merge */
+		MERGE_HEAVY
+	}
+
+	final int commits = Integer.getInteger("simulation.commits", 1000);
+	final Shape shape = Shape.valueOf(System.getProperty("simulation.shape", Shape.LINEAR.name()));
+	/** The commit that introduces the regression, commit 0 is the oldest */
+	final int regressionAt = Integer.getInteger("simulation.regressionAt", commits * 2 / 3);
+	/** The number of searches running at the same time */
+	final int searches = Integer.getInteger("simulation.searches", 1);
+	final long buildMillis = Long.getLong("simulation.buildMillis", 0L);
+	/** The chance that a build of a good revision fails anyway */
+	final double flakeRate = Double.parseDouble(System.getProperty("simulation.flakeRate", "0"));
+	final int retryCount = Integer.getInteger("simulation.retryCount", 0);
+	final int minSuccessfulIterations = Integer.getInteger("simulation.minSuccessfulIterations", 1);
+	final boolean useJGitEngine = Boolean.getBoolean("simulation.useJGitEngine");
+	final boolean releaseExecutor = Boolean.getBoolean("simulation.releaseExecutor");
+	final long seed = Long.getLong("simulation.seed", 1L);
+	final long timeoutMinutes = Long.getLong("simulation.timeoutMinutes", 60L);
+
+	@Override
+	public String toString() {
+		return shape + " history of " + commits + " commits, regression at " + regressionAt + ", " + searches + " searches, " +
+			   buildMillis + "ms builds failing " + (flakeRate * 100) + "% of the time, retryCount " + retryCount + 
+			   ", minSuccessfulIterations " + minSuccessfulIterations + (useJGitEngine ? ", JGit" : ", git CLI") + 
+			   (releaseExecutor ? ", releasing executors" : "");
+	}
+}
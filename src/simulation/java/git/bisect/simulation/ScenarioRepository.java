@@ -0,0 +1,127 @@
+package git.bisect.simulation;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+
+/**
+ * A generated repository with a regression planted at one commit, every commit that contains it is bad.
+ * Every commit has a tree of its own, so the verdict cache doesn't mix up revisions.
+ */
+final class ScenarioRepository {
+	final File directory;
+	final List<String> ids = new ArrayList<>();
+	final Set<String> badCommits = new HashSet<>();
+	final String regression;
+
+	private ScenarioRepository(File directory, Scenario scenario) throws IOException {
+		this.directory = directory;
+		int[][] parents = parentsOf(scenario.shape, scenario.commits);
+		boolean[] bad = new boolean[parents.length];
+		try (Repository repository = FileRepositoryBuilder.create(new File(directory, Constants.DOT_GIT)))
+		{
+			repository.create();
+			PersonIdent author = new PersonIdent("Simulation", "simulation@example.com");
+			try (ObjectInserter inserter = repository.newObjectInserter())
+			{
+				List<ObjectId> commitIds = new ArrayList<>();
+				for (int i = 0; i < parents.length; i++)
+				{
+					bad[i] = i == scenario.regressionAt;
+					for (int parent : parents[i])
+						bad[i] |= bad[parent];
+
+					TreeFormatter tree = new TreeFormatter();
+					tree.append("VERSION", FileMode.REGULAR_FILE, 
+							inserter.insert(Constants.OBJ_BLOB, (i + "\n").getBytes(StandardCharsets.UTF_8)));
+					CommitBuilder commit = new CommitBuilder();
+					commit.setTreeId(inserter.insert(tree));
+					for (int parent : parents[i])
+						commit.addParentId(commitIds.get(parent));
+					commit.setAuthor(author);
+					commit.setCommitter(author);
+					commit.setMessage("Commit " + i + "\n");
+					ObjectId id = inserter.insert(commit);
+					commitIds.add(id);
+					ids.add(id.name());
+					if (bad[i])
+						badCommits.add(id.name());
+				}
+				inserter.flush();
+
+				RefUpdate master = repository.updateRef("refs/heads/master");
+				master.setNewObjectId(commitIds.get(commitIds.size() - 1));
+				master.forceUpdate();
+			}
+		}
+		this.regression = ids.get(scenario.regressionAt);
+	}
+
+	static ScenarioRepository generate(File directory, Scenario scenario) throws IOException {
+		if (scenario.regressionAt <= 0 || scenario.regressionAt >= scenario.commits)
+			throw new IllegalArgumentException("The regression must be planted after the first and up to the last commit");
+		return new ScenarioRepository(directory, scenario);
+	}
+
+	/**
+	 * The same shapes as the benchmarks use
+	 * @return the parents of every commit, by commit
+	 */
+	private static int[][] parentsOf(Scenario.Shape shape, int commits) {
+		int[][] parents = new int[commits][];
+		parents[0] = new int[0];
+		int mainline = 0;
+		for (int i = 1; i < commits; i++)
+		{
+			int positionInBlock = (i - 1) % 5;
+			if (shape == Scenario.Shape.LINEAR)
+				parents[i] = new int[] { i - 1 };
+			else if (positionInBlock == 0)
+				parents[i] = new int[] { mainline };
+			else if (positionInBlock < 3)
+				parents[i] = new int[] { i - 1 };
+			else if (positionInBlock == 3)
+				parents[i] = new int[] { mainline };
+			else
+				parents[i] = new int[] { i - 1, i - 2 };
+
+			if (shape == Scenario.Shape.LINEAR || positionInBlock == 4)
+				mainline = i;
+		}
+		return parents;
+	}
+
+	String good() {
+		return ids.get(0);
+	}
+
+	String bad() {
+		return ids.get(ids.size() - 1);
+	}
+
+	/**
+	 * Every search needs a repository of its own, the clones share the objects of the generated repository
+	 */
+	File cloneTo(File clone) throws IOException, InterruptedException {
+		Process git = new ProcessBuilder("git", "clone", "--quiet", "--no-checkout", "--shared", 
+				directory.getAbsolutePath(), clone.getAbsolutePath()).inheritIO().start();
+		if (git.waitFor() != 0)
+			throw new IOException("Could not clone " + directory + " to " + clone);
+		return clone;
+	}
+}
@@ -0,0 +1,115 @@
+package git.bisect.builder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import git.bisect.builder.CommandsRunner.CommitState;
+
+public class BisectStateTest {
+	@Test
+	public void foldsVerdictsInOrder() {
+		BisectState state = BisectState.fromLog(Arrays.asList(
+				"git bisect start",
+				"# bad: [b1] Break the build",
+				"git bisect bad b1",
+				"git bisect good g1",
+				"git bisect skip s1",
+				"git bisect bad b2",
+				"git bisect good g2"));
+
+		assertEquals("b2", state.getBad());
+		assertEquals(Arrays.asList("g1", "g2"), Arrays.asList(state.getGoods().toArray()));
+		assertEquals(Collections.singletonList("s1"), Arrays.asList(state.getSkipped().toArray()));
+		assertTrue(state.hasBounds());
+		assertFalse(state.isComplete());
+		assertTrue("The log is journaled already", state.takeNewEntries().isEmpty());
+	}
+
+	@Test
+	public void completionLineCompletesTheSearch() {
+		BisectState state = BisectState.fromLog(Arrays.asList(
+				"git bisect start",
+				"git bisect bad b1",
+				"git bisect good g1",
+				"# first bad commit: [b1] Break the build"));
+
+		assertTrue(state.isComplete());
+		assertEquals("b1", state.getFirstBadCommit());
+	}
+
+	@Test
+	public void verdictAfterCompletionReopensTheSearch() {
+		BisectState state = BisectState.fromLog(Arrays.asList(
+				"git bisect bad merge",
+				"git bisect good g1",
+				"# first bad commit: [merge] Merge the feature branch",
+				"git bisect good parent"));
+
+		assertFalse(state.isComplete());
+		assertNull(state.getFirstBadCommit());
+		assertTrue(state.getGoods().contains("parent"));
+	}
+
+	@Test
+	public void completionAfterReopeningCompletesAgain() {
+		BisectState state = BisectState.fromLog(Arrays.asList(
+				"git bisect bad merge",
+				"git bisect good g1",
+				"# first bad commit: [merge] Merge the feature branch",
+				"git bisect good parent",
+				"git bisect bad inside",
+				"# first bad commit: [inside] Break the build on the branch"));
+
+		assertTrue(state.isComplete());
+		assertEquals("inside", state.getFirstBadCommit());
+	}
+
+	@Test
+	public void subjectMentioningTheCompletionDoesNotComplete() {
+		BisectState state = BisectState.fromLog(Arrays.asList(
+				"git bisect bad b1",
+				"# good: [g1] Report the first bad commit: [x] in the summary",
+				"git bisect good g1"));
+
+		assertFalse(state.isComplete());
+		assertTrue(state.hasBounds());
+	}
+
+	@Test
+	public void logOfTheStateFoldsBackIntoIt() {
+		BisectState state = new BisectState();
+		state.recordVerdict("b1", CommitState.Bad);
+		state.recordVerdict("g1", CommitState.Good);
+		state.recordVerdict("s1", CommitState.Skip);
+		state.recordVerdict("b2", CommitState.Bad);
+		state.complete("b2");
+
+		BisectState folded = BisectState.fromLog(state.toLog());
+		assertEquals(state.getBad(), folded.getBad());
+		assertEquals(state.getGoods(), folded.getGoods());
+		assertEquals(state.getSkipped(), folded.getSkipped());
+		assertEquals(state.getFirstBadCommit(), folded.getFirstBadCommit());
+	}
+
+	@Test
+	public void newEntriesAreTakenOnce() {
+		BisectState state = new BisectState();
+		state.recordVerdict("b1", CommitState.Bad);
+		state.recordVerdict("g1", CommitState.Good);
+		assertEquals(Arrays.asList("git bisect bad b1", "git bisect good g1"), state.takeNewEntries());
+
+		state.complete("b1");
+		state.drillInto("b1", "p1");
+		List<String> entries = state.takeNewEntries();
+		assertEquals(Arrays.asList("# first bad commit: [b1]", "git bisect good p1"), entries);
+		assertTrue(state.takeNewEntries().isEmpty());
+	}
+}
@@ -0,0 +1,75 @@
+package git.bisect.builder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * The parsing of git output, which streams through the runner line by line or is searched without splitting it.
+ */
+public class CommandsRunnerParsingTest {
+	@Test
+	public void findsTheCompletionLineInBisectOutput() {
+		String output = "abc123 is the first bad commit\n" + 
+						"commit abc123\n" + 
+						"Author: Someone <someone@example.com>\n" + 
+						"\n" + 
+						"    Break the build\n";
+
+		assertEquals("abc123 is the first bad commit", CommandsRunner.findCompletionToken(output));
+	}
+
+	@Test
+	public void findsTheCompletionLineAfterOtherLines() {
+		String output = "Bisecting: 0 revisions left to test after this (roughly 0 steps)\r\n" + 
+						"abc123 is the first bad commit\r\n" + 
+						"commit abc123\r\n";
+
+		assertEquals("abc123 is the first bad commit", CommandsRunner.findCompletionToken(output));
+	}
+
+	@Test
+	public void findsTheCompletionLineAtTheEndOfOutput() {
+		assertEquals("abc123 is the first bad commit", CommandsRunner.findCompletionToken("abc123 is the first bad commit"));
+	}
+
+	@Test
+	public void noCompletionLineInOutputOfAnUnfinishedSearch() {
+		assertNull(CommandsRunner.findCompletionToken("Bisecting: 3 revisions left to test after this (roughly 2 steps)\n" + 
+													  "[def456] Refactor the parser\n"));
+	}
+
+	@Test
+	public void revisionOfTheCompletionEntry() {
+		assertEquals("abc123", CommandsRunner.revisionFromLine("# first bad commit: [abc123] Break the build"));
+	}
+
+	@Test
+	public void numstatSizesPerCommit() {
+		CommandsRunner.NumstatParser parser = new CommandsRunner.NumstatParser();
+		for (String line : new String[] {
+				"#aaa",
+				"",
+				"3\t1\tsrc/Main.java",
+				"10\t0\tREADME.md",
+				"#bbb",
+				"",
+				"-\t-\tlogo.png",
+				"2\t2\tsrc/Main.java",
+				"#ccc",
+				"#" })
+			parser.accept(line);
+
+		assertSize(2, 14, parser.sizes.get("aaa"));
+		assertSize(2, 4, parser.sizes.get("bbb"));
+		// A commit that changes no files, for example an empty merge
+		assertSize(0, 0, parser.sizes.get("ccc"));
+		assertEquals(3, parser.sizes.size());
+	}
+
+	private static void assertSize(int touchedPaths, int changedLines, ChangeSize size) {
+		assertEquals(touchedPaths, size.touchedPaths);
+		assertEquals(changedLines, size.changedLines);
+	}
+}
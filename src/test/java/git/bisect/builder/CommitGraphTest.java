@@ -0,0 +1,218 @@
+package git.bisect.builder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Compares the candidates and midpoints of the in-process engine with 'git bisect' on the same histories.
+ * git and the engine may break ties differently, so midpoints are compared by how evenly they split the candidates.
+ */
+public class CommitGraphTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private File repository;
+
+	@Test
+	public void linearHistory() throws Exception {
+		int[][] parents = new int[40][];
+		parents[0] = new int[0];
+		for (int i = 1; i < parents.length; i++)
+			parents[i] = new int[] { i - 1 };
+
+		List<String> commits = writeHistory(parents);
+		for (int firstBad : Arrays.asList(1, 13, 20, 39))
+			bisectLikeGit(commits, commits.get(firstBad));
+	}
+
+	@Test
+	public void mergedBranches() throws Exception {
+		// Every fifth commit merges a branch of three commits, forked from the previous merge
+		int[][] parents = new int[41][];
+		parents[0] = new int[0];
+		int mainline = 0;
+		for (int i = 1; i < parents.length; i++)
+		{
+			int positionInBlock = (i - 1) % 5;
+			if (positionInBlock == 0 || positionInBlock == 3)
+				parents[i] = new int[] { mainline };
+			else if (positionInBlock < 3)
+				parents[i] = new int[] { i - 1 };
+			else
+			{
+				parents[i] = new int[] { i - 1, i - 2 };
+				mainline = i;
+			}
+		}
+
+		List<String> commits = writeHistory(parents);
+		for (int firstBad : Arrays.asList(2, 4, 5, 17, 30, 40))
+			bisectLikeGit(commits, commits.get(firstBad));
+	}
+
+	@Test
+	public void longBranchAndCrissCrossMerges() throws Exception {
+		int[][] parents = {
+				{},
+				{ 0 }, { 1 }, { 2 }, { 3 }, { 4 }, { 5 }, { 6 }, { 7 },     // mainline
+				{ 1 }, { 9 }, { 10 }, { 11 }, { 12 }, { 13 },               // a long branch forked early
+				{ 8, 12 }, { 13, 8 },                                       // criss-cross merges
+				{ 15, 16 }, { 17 }, { 14, 18 }, { 19 } };
+		List<String> commits = writeHistory(parents);
+		for (int firstBad = 1; firstBad < parents.length; firstBad++)
+			bisectLikeGit(commits, commits.get(firstBad));
+	}
+
+	@Test
+	public void candidatesIncludeBadAndExcludeWhatGoodsReach() throws Exception {
+		int[][] parents = { {}, { 0 }, { 1 }, { 0 }, { 2, 3 }, { 4 } };
+		List<String> commits = writeHistory(parents);
+		CommitGraph graph = new CommitGraph.Loader(commits.get(5), Collections.singletonList(commits.get(0))).invoke(repository, null);
+
+		List<String> goods = Arrays.asList(commits.get(0), commits.get(2));
+		assertEquals(gitCandidates(commits.get(5), goods), new HashSet<>(graph.candidates(commits.get(5), goods)));
+		assertEquals(Arrays.asList(commits.get(5), commits.get(4), commits.get(3)), graph.candidates(commits.get(5), goods));
+	}
+
+	@Test
+	public void noMidpointOnceOnlyBadIsLeft() throws Exception {
+		List<String> commits = writeHistory(new int[][] { {}, { 0 } });
+		CommitGraph graph = new CommitGraph.Loader(commits.get(1), Collections.singletonList(commits.get(0))).invoke(repository, null);
+
+		assertNull(graph.midpoint(commits.get(1), Collections.singletonList(commits.get(0)), Collections.emptyList()));
+	}
+
+	/**
+	 * Runs a whole search for <code>firstBad</code> with git, checking the engine agrees with it at every step
+	 */
+	private void bisectLikeGit(List<String> commits, String firstBad) throws Exception {
+		String bad = commits.get(commits.size() - 1);
+		List<String> goods = new ArrayList<>(Collections.singletonList(commits.get(0)));
+		CommitGraph graph = new CommitGraph.Loader(bad, goods).invoke(repository, null);
+
+		git("bisect", "reset");
+		String output = git("bisect", "start", "--no-checkout", bad, goods.get(0));
+		while (true)
+		{
+			assertEquals(gitCandidates(bad, goods), new HashSet<>(graph.candidates(bad, goods)));
+			String midpoint = graph.midpoint(bad, goods, Collections.emptyList());
+			if (output.contains("is the first bad commit"))
+			{
+				assertNull(midpoint);
+				break;
+			}
+
+			String gitMidpoint = git("rev-parse", "BISECT_HEAD");
+			assertEquals("Split of " + midpoint + " against git's " + gitMidpoint,
+						 splitScore(gitMidpoint, bad, goods), splitScore(midpoint, bad, goods));
+
+			if (isAncestor(firstBad, gitMidpoint))
+			{
+				bad = gitMidpoint;
+				output = git("bisect", "bad", gitMidpoint);
+			}
+			else
+			{
+				goods.add(gitMidpoint);
+				output = git("bisect", "good", gitMidpoint);
+			}
+		}
+
+		assertEquals(firstBad, bad);
+		git("bisect", "reset");
+	}
+
+	/**
+	 * How evenly testing <code>commit</code> splits the candidates, the smaller side of the split
+	 */
+	private int splitScore(String commit, String bad, List<String> goods) throws Exception {
+		int candidates = gitCandidates(bad, goods).size();
+		int weight = gitCandidates(commit, goods).size();
+		return Math.min(weight, candidates - weight);
+	}
+
+	private HashSet<String> gitCandidates(String bad, List<String> goods) throws Exception {
+		List<String> args = new ArrayList<>(Arrays.asList("rev-list", bad, "--not"));
+		args.addAll(goods);
+		String revisions = git(args.toArray(new String[0]));
+		return revisions.isEmpty() ? new HashSet<>() : new HashSet<>(Arrays.asList(revisions.split("\n")));
+	}
+
+	private boolean isAncestor(String ancestor, String descendant) throws Exception {
+		return run("merge-base", "--is-ancestor", ancestor, descendant).exitStatus == 0;
+	}
+
+	/**
+	 * Writes the history with git, every commit has the empty tree.
+	 * @return the ids of the commits, by commit
+	 */
+	private List<String> writeHistory(int[][] parents) throws Exception {
+		repository = temporaryFolder.newFolder();
+		git("init", "-q");
+		String emptyTree = git("write-tree");
+
+		List<String> commits = new ArrayList<>();
+		for (int i = 0; i < parents.length; i++)
+		{
+			List<String> args = new ArrayList<>(Arrays.asList("commit-tree", emptyTree, "-m", "Commit " + i));
+			for (int parent : parents[i])
+				args.addAll(Arrays.asList("-p", commits.get(parent)));
+			commits.add(git(args.toArray(new String[0])));
+		}
+		git("update-ref", "refs/heads/master", commits.get(commits.size() - 1));
+		return commits;
+	}
+
+	private String git(String... args) throws Exception {
+		Result result = run(args);
+		assertTrue("git " + String.join(" ", args) + " failed - " + result.output, result.exitStatus == 0);
+		return result.output;
+	}
+
+	private Result run(String... args) throws IOException, InterruptedException {
+		List<String> command = new ArrayList<>(Collections.singletonList("git"));
+		command.addAll(Arrays.asList(args));
+		ProcessBuilder builder = new ProcessBuilder(command).directory(repository).redirectErrorStream(true);
+		builder.environment().put("GIT_AUTHOR_NAME", "Test");
+		builder.environment().put("GIT_AUTHOR_EMAIL", "test@example.com");
+		builder.environment().put("GIT_COMMITTER_NAME", "Test");
+		builder.environment().put("GIT_COMMITTER_EMAIL", "test@example.com");
+		Process process = builder.start();
+		String output = readAll(process.getInputStream());
+		return new Result(process.waitFor(), output.trim());
+	}
+
+	private static String readAll(InputStream stream) throws IOException {
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		for (int read = stream.read(buffer); read != -1; read = stream.read(buffer))
+			content.write(buffer, 0, read);
+		return content.toString(StandardCharsets.UTF_8.name());
+	}
+
+	private static class Result {
+		final int exitStatus;
+		final String output;
+
+		Result(int exitStatus, String output) {
+			this.exitStatus = exitStatus;
+			this.output = output;
+		}
+	}
+}
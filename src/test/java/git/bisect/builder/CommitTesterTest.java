@@ -0,0 +1,104 @@
+package git.bisect.builder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+
+import git.bisect.Logger;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleProject;
+import hudson.model.ParametersAction;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.Result;
+import hudson.model.StringParameterDefinition;
+import hudson.model.StringParameterValue;
+import hudson.model.TaskListener;
+
+public class CommitTesterTest {
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@Test
+	public void recentResultsByRevision() throws Exception {
+		FreeStyleProject downstream = downstreamProject();
+		build(downstream, "aaa", Result.SUCCESS);
+		build(downstream, "bbb", Result.FAILURE);
+		build(downstream, "aaa", Result.FAILURE);
+		build(downstream, "ccc", Result.UNSTABLE);
+
+		HashMap<String, List<Boolean>> results = tester(downstream).recentResults("REVISION", 10);
+
+		assertEquals(3, results.size());
+		// The latest build comes first
+		assertEquals(Arrays.asList(false, true), results.get("aaa"));
+		assertEquals(Arrays.asList(false), results.get("bbb"));
+		assertEquals(Arrays.asList(false), results.get("ccc"));
+	}
+
+	@Test
+	public void buildsThatTellNothingAreLeftOut() throws Exception {
+		FreeStyleProject downstream = downstreamProject();
+		build(downstream, "aaa", Result.ABORTED);
+		build(downstream, "bbb", Result.NOT_BUILT);
+		// A build that was not given a revision, for example one started by hand
+		build(downstream, "", Result.FAILURE);
+
+		assertTrue(tester(downstream).recentResults("REVISION", 10).isEmpty());
+	}
+
+	@Test
+	public void onlyTheLatestBuildsAreHarvested() throws Exception {
+		FreeStyleProject downstream = downstreamProject();
+		build(downstream, "old", Result.FAILURE);
+		build(downstream, "newer", Result.SUCCESS);
+		build(downstream, "newest", Result.SUCCESS);
+
+		HashMap<String, List<Boolean>> results = tester(downstream).recentResults("REVISION", 2);
+
+		assertEquals(2, results.size());
+		assertFalse(results.containsKey("old"));
+	}
+
+	private FreeStyleProject downstreamProject() throws IOException {
+		FreeStyleProject downstream = j.createFreeStyleProject();
+		downstream.addProperty(new ParametersDefinitionProperty(
+				new StringParameterDefinition("REVISION", ""), 
+				new StringParameterDefinition("RESULT", "SUCCESS")));
+		downstream.getBuildersList().add(new ResultBuilder());
+		return downstream;
+	}
+
+	private void build(FreeStyleProject downstream, String revision, Result result) throws Exception {
+		j.assertBuildStatus(result, downstream.scheduleBuild2(0, new ParametersAction(
+				new StringParameterValue("REVISION", revision), 
+				new StringParameterValue("RESULT", result.toString()))));
+	}
+
+	private static CommitTester tester(FreeStyleProject downstream) {
+		// Harvesting the history of the downstream project doesn't involve the bisect build
+		return new CommitTester(null, downstream, new Logger(TaskListener.NULL));
+	}
+
+	/**
+	 * Ends the build with the result given as its RESULT parameter
+	 */
+	private static class ResultBuilder extends TestBuilder {
+		@Override
+		public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+			build.setResult(Result.fromString(build.getEnvironment(listener).get("RESULT")));
+			return true;
+		}
+	}
+}
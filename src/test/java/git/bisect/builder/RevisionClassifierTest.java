@@ -0,0 +1,72 @@
+package git.bisect.builder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import git.bisect.Logger;
+import git.bisect.builder.GitBisectBuilder.RevisionClassifier;
+import hudson.model.TaskListener;
+
+/**
+ * Verdicts of revisions from their runs, in the order previous builds of the tester project are fed to them.
+ */
+public class RevisionClassifierTest {
+	@Test
+	public void singleRunDecidesWithoutRetries() {
+		RevisionClassifier good = classifier(1, 1, true);
+		assertTrue(good.verifiedResult());
+		assertTrue(good.wasGood());
+
+		RevisionClassifier bad = classifier(1, 1, false);
+		assertTrue(bad.verifiedResult());
+		assertFalse(bad.wasGood());
+	}
+
+	@Test
+	public void fewerRunsThanNeededLeaveTheRevisionUnclassified() {
+		RevisionClassifier classifier = classifier(3, 2, true, false);
+
+		assertFalse(classifier.verifiedResult());
+		assertEquals(2, classifier.maxRemainingRuns());
+	}
+
+	@Test
+	public void flakyRunsAreCountedOnBothSides() {
+		RevisionClassifier good = classifier(3, 2, false, true, false, true);
+		assertTrue(good.verifiedResult());
+		assertTrue(good.wasGood());
+
+		RevisionClassifier bad = classifier(3, 2, false, true, false, false);
+		assertTrue(bad.verifiedResult());
+		assertFalse(bad.wasGood());
+	}
+
+	@Test
+	public void runsAfterTheVerdictDontChangeIt() {
+		RevisionClassifier classifier = classifier(2, 2, true, true, false, false, false);
+
+		assertTrue(classifier.verifiedResult());
+		assertTrue(classifier.wasGood());
+	}
+
+	@Test
+	public void restoredAttemptsCountTowardsTheVerdict() {
+		RevisionClassifier classifier = classifier(3, 2);
+		classifier.restore(2, 1);
+		assertFalse(classifier.verifiedResult());
+
+		classifier.updateResult(false);
+		assertTrue(classifier.verifiedResult());
+		assertFalse(classifier.wasGood());
+	}
+
+	private static RevisionClassifier classifier(int retryCount, int minSuccessfulIterations, boolean... runs) {
+		RevisionClassifier classifier = new RevisionClassifier(retryCount, minSuccessfulIterations, new Logger(TaskListener.NULL));
+		for (boolean wasSuccessful : runs)
+			classifier.updateResult(wasSuccessful);
+		return classifier;
+	}
+}
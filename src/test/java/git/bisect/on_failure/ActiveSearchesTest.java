@@ -0,0 +1,219 @@
+package git.bisect.on_failure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import git.bisect.CommitPair;
+import git.bisect.builder.BisectEngine;
+
+/**
+ * How failures relate to the running searches of a job, on a small history:
+ * c0 - c1 - ... - c9 on the mainline, and a branch b1 - b2 forked from c3.
+ */
+public class ActiveSearchesTest {
+	private static final String JOB = "nightly";
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private final Map<String, String> parents = new HashMap<>();
+	private BisectEngine engine;
+	private ActiveSearches searches;
+
+	@Before
+	public void createHistory() throws Exception {
+		for (int i = 1; i < 10; i++)
+			parents.put("c" + i, "c" + (i - 1));
+		parents.put("b1", "c3");
+		parents.put("b2", "b1");
+
+		engine = (BisectEngine) Proxy.newProxyInstance(BisectEngine.class.getClassLoader(), new Class<?>[] { BisectEngine.class }, 
+				(proxy, method, args) -> {
+					if (!method.getName().equals("isAncestor"))
+						throw new UnsupportedOperationException(method.getName());
+					return isAncestor((String) args[0], (String) args[1]);
+				});
+		searches = new ActiveSearches(temporaryFolder.newFile("searches.xml"));
+	}
+
+	private boolean isAncestor(String ancestor, String descendant) {
+		for (String commit = descendant; commit != null; commit = parents.get(commit))
+			if (commit.equals(ancestor))
+				return true;
+		return false;
+	}
+
+	@Test
+	public void firstFailureStartsASearch() throws Exception {
+		ActiveSearches.Search search = searches.joinOrStart(JOB, "#1", new CommitPair("c2", "c5"), engine);
+
+		assertEquals("#1", search.startedBy);
+		assertRange("c2", "c5", search);
+		assertTrue(search.getJoinedBuilds().isEmpty());
+	}
+
+	@Test
+	public void failureOfALaterCommitJoinsTheSearch() throws Exception {
+		ActiveSearches.Search started = searches.joinOrStart(JOB, "#1", new CommitPair("c2", "c5"), engine);
+		ActiveSearches.Search joined = searches.joinOrStart(JOB, "#2", new CommitPair("c4", "c7"), engine);
+
+		assertEquals(started.id, joined.id);
+		assertRange("c2", "c5", joined);
+		assertEquals(Collections.singletonList("#2"), joined.getJoinedBuilds());
+	}
+
+	@Test
+	public void failureInsideTheRangeNarrowsTheSearch() throws Exception {
+		ActiveSearches.Search started = searches.joinOrStart(JOB, "#1", new CommitPair("c2", "c7"), engine);
+		ActiveSearches.Search joined = searches.joinOrStart(JOB, "#2", new CommitPair("c3", "c4"), engine);
+
+		assertEquals(started.id, joined.id);
+		assertRange("c2", "c4", joined);
+	}
+
+	@Test
+	public void failureAfterTheRangeStartsItsOwnSearch() throws Exception {
+		// c5 passed before c8 failed, so c5 can't be the commit that broke c8
+		ActiveSearches.Search first = searches.joinOrStart(JOB, "#1", new CommitPair("c2", "c5"), engine);
+		ActiveSearches.Search second = searches.joinOrStart(JOB, "#2", new CommitPair("c6", "c8"), engine);
+
+		assertNotEquals(first.id, second.id);
+		assertEquals("#2", second.startedBy);
+		assertRange("c2", "c5", searches.lookup(JOB, first.id));
+	}
+
+	@Test
+	public void failureOnABranchOutsideTheRangeStartsItsOwnSearch() throws Exception {
+		ActiveSearches.Search first = searches.joinOrStart(JOB, "#1", new CommitPair("c4", "c6"), engine);
+		ActiveSearches.Search second = searches.joinOrStart(JOB, "#2", new CommitPair("b1", "b2"), engine);
+
+		assertNotEquals(first.id, second.id);
+	}
+
+	@Test
+	public void searchesOfOtherJobsAreNotJoined() throws Exception {
+		ActiveSearches.Search first = searches.joinOrStart(JOB, "#1", new CommitPair("c2", "c5"), engine);
+		ActiveSearches.Search other = searches.joinOrStart("other", "#1", new CommitPair("c2", "c5"), engine);
+
+		assertNotEquals(first.id, other.id);
+	}
+
+	@Test
+	public void finishedSearchIsNotJoined() throws Exception {
+		ActiveSearches.Search first = searches.joinOrStart(JOB, "#1", new CommitPair("c2", "c5"), engine);
+		searches.finish(JOB, first.id);
+
+		assertNull(searches.lookup(JOB, first.id));
+		assertNotEquals(first.id, searches.joinOrStart(JOB, "#2", new CommitPair("c2", "c5"), engine).id);
+	}
+
+	@Test
+	public void lookupReturnsACopy() throws Exception {
+		ActiveSearches.Search started = searches.joinOrStart(JOB, "#1", new CommitPair("c2", "c5"), engine);
+		searches.lookup(JOB, started.id).getJoinedBuilds().add("#2");
+
+		assertTrue(searches.lookup(JOB, started.id).getJoinedBuilds().isEmpty());
+	}
+
+	@Test
+	public void updateRecordsTheNextRange() throws Exception {
+		ActiveSearches.Search started = searches.joinOrStart(JOB, "#1", new CommitPair("c2", "c7"), engine);
+		searches.update(JOB, started.id, new CommitPair("c4", "c7"), engine);
+
+		assertRange("c4", "c7", searches.lookup(JOB, started.id));
+	}
+
+	@Test
+	public void updateKeepsBoundsNarrowedMeanwhile() throws Exception {
+		// The step started from (c2, c8), meanwhile a failure narrowed the bad commit to c6
+		ActiveSearches.Search started = searches.joinOrStart(JOB, "#1", new CommitPair("c2", "c8"), engine);
+		searches.joinOrStart(JOB, "#2", new CommitPair("c3", "c6"), engine);
+		searches.update(JOB, started.id, new CommitPair("c4", "c8"), engine);
+
+		assertRange("c4", "c6", searches.lookup(JOB, started.id));
+	}
+
+	@Test
+	public void updateOfAFinishedSearchIsIgnored() throws Exception {
+		ActiveSearches.Search started = searches.joinOrStart(JOB, "#1", new CommitPair("c2", "c5"), engine);
+		searches.finish(JOB, started.id);
+		searches.update(JOB, started.id, new CommitPair("c3", "c5"), engine);
+
+		assertNull(searches.lookup(JOB, started.id));
+	}
+
+	@Test
+	public void passingCommitInsideTheRangeRaisesTheGoodCommit() throws Exception {
+		ActiveSearches.Search started = searches.joinOrStart(JOB, "#1", new CommitPair("c2", "c7"), engine);
+		List<ActiveSearches.Search> narrowed = searches.markGood(JOB, "c4", engine);
+
+		assertEquals(1, narrowed.size());
+		assertEquals(started.id, narrowed.get(0).id);
+		assertRange("c4", "c7", narrowed.get(0));
+		assertRange("c4", "c7", searches.lookup(JOB, started.id));
+	}
+
+	@Test
+	public void passingCommitOutsideTheRangeChangesNothing() throws Exception {
+		ActiveSearches.Search started = searches.joinOrStart(JOB, "#1", new CommitPair("c2", "c5"), engine);
+
+		assertTrue(searches.markGood(JOB, "c1", engine).isEmpty());
+		assertTrue(searches.markGood(JOB, "c8", engine).isEmpty());
+		assertTrue(searches.markGood(JOB, "b2", engine).isEmpty());
+		assertRange("c2", "c5", searches.lookup(JOB, started.id));
+	}
+
+	@Test
+	public void passingBoundsChangeNothing() throws Exception {
+		ActiveSearches.Search started = searches.joinOrStart(JOB, "#1", new CommitPair("c2", "c5"), engine);
+
+		assertTrue(searches.markGood(JOB, "c2", engine).isEmpty());
+		assertTrue(searches.markGood(JOB, "c5", engine).isEmpty());
+		assertRange("c2", "c5", searches.lookup(JOB, started.id));
+	}
+
+	@Test
+	public void buildWithoutACommitChangesNothing() throws Exception {
+		searches.joinOrStart(JOB, "#1", new CommitPair("c2", "c5"), engine);
+
+		assertTrue(searches.markGood(JOB, null, engine).isEmpty());
+	}
+
+	@Test
+	public void passingCommitOfAJobWithoutSearches() throws Exception {
+		searches.joinOrStart("other", "#1", new CommitPair("c2", "c5"), engine);
+
+		assertTrue(searches.markGood(JOB, "c3", engine).isEmpty());
+	}
+
+	@Test
+	public void passingCommitRaisesEverySearchItIsInside() throws Exception {
+		// The failure of b2 on the branch has a search of its own, c3 is inside both ranges
+		searches.joinOrStart(JOB, "#1", new CommitPair("c2", "c5"), engine);
+		searches.joinOrStart(JOB, "#2", new CommitPair("c1", "b2"), engine);
+
+		List<ActiveSearches.Search> narrowed = searches.markGood(JOB, "c3", engine);
+		assertEquals(2, narrowed.size());
+		for (ActiveSearches.Search search : narrowed)
+			assertEquals("c3", search.getRange().goodCommit);
+	}
+
+	private static void assertRange(String good, String bad, ActiveSearches.Search search) {
+		CommitPair range = search.getRange();
+		assertEquals(Arrays.asList(good, bad), Arrays.asList(range.goodCommit, range.badCommit));
+	}
+}
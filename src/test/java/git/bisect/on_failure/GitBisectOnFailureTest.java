@@ -0,0 +1,38 @@
+package git.bisect.on_failure;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.FailureBuilder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import git.bisect.builder.BisectMetrics;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+
+public class GitBisectOnFailureTest {
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@Test
+	public void failedBuildRecordsMetrics() throws Exception {
+		FreeStyleProject project = j.createFreeStyleProject();
+		project.getBuildersList().add(new FailureBuilder());
+		project.getPublishersList().add(new GitBisectOnFailure("git", "GIT_COMMIT", false));
+
+		FreeStyleBuild build = j.buildAndAssertStatus(Result.FAILURE, project);
+		assertNotNull("A failure starts a search, its git commands are measured", build.getAction(BisectMetrics.class));
+	}
+
+	@Test
+	public void passingBuildOutsideSearchHasNoMetrics() throws Exception {
+		FreeStyleProject project = j.createFreeStyleProject();
+		project.getPublishersList().add(new GitBisectOnFailure("git", "GIT_COMMIT", false));
+
+		FreeStyleBuild build = j.buildAndAssertSuccess(project);
+		assertNull("A regular build that takes no part in a search gets no metrics", build.getAction(BisectMetrics.class));
+	}
+}